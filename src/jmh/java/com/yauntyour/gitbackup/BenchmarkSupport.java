@@ -0,0 +1,75 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.lib.PersonIdent;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 基准测试共用的工具：临时目录、不输出日志的 Logger 和固定的提交作者。
+ */
+final class BenchmarkSupport {
+    static final long SEED = 20240601L;
+    static final String WORLD = "world";
+
+    private BenchmarkSupport() {
+    }
+
+    static Path createTempDir(String name) throws IOException {
+        // 可以用 -Dgitbackup.bench.dir 指定放在被测磁盘上
+        String base = System.getProperty("gitbackup.bench.dir");
+        if (base != null) {
+            return Files.createTempDirectory(Files.createDirectories(Path.of(base)), name);
+        }
+        return Files.createTempDirectory(name);
+    }
+
+    static Logger quietLogger() {
+        Logger logger = Logger.getLogger("GitBackup-Bench");
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.WARNING);
+        return logger;
+    }
+
+    static PersonIdent ident() {
+        // 固定时间，不同运行生成的提交对象相同
+        return new PersonIdent("GitBackup", "bench@localhost", Instant.parse("2024-06-01T00:00:00Z"), ZoneOffset.UTC);
+    }
+
+    static ExecutorService hashExecutor() {
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "GitBackup-Bench-Hash");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static void deleteRecursively(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
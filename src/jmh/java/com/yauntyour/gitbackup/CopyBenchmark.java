@@ -0,0 +1,74 @@
+package com.yauntyour.gitbackup;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把世界复制到工作区：完整复制（copyDirectory）与增量镜像（WorldMirror）。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CopyBenchmark {
+    @Param({"16"})
+    public int regions;
+
+    @Param({"256"})
+    public int chunksPerRegion;
+
+    @Param({"50"})
+    public int players;
+
+    @Param({"0.05"})
+    public double mutationRate;
+
+    private Path dir;
+    private SyntheticWorld world;
+    private Path target;
+    private WorldMirror mirror;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("gitbackup-copy");
+        world = new SyntheticWorld(dir.resolve("server").resolve(BenchmarkSupport.WORLD), BenchmarkSupport.SEED,
+                regions, chunksPerRegion, players);
+        world.generate();
+        target = dir.resolve("repo").resolve(BenchmarkSupport.WORLD);
+        mirror = new WorldMirror(BenchmarkSupport.quietLogger(), new ExcludeFilter(List.of("session.lock")), false);
+        mirror.sync(world.getRoot(), target, BenchmarkSupport.WORLD);
+    }
+
+    @Setup(Level.Invocation)
+    public void save() throws IOException {
+        world.mutate(mutationRate);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkSupport.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public void fullCopy() throws IOException {
+        GitManager.deleteDirectory(target.toFile());
+        GitManager.copyDirectory(world.getRoot(), target, BenchmarkSupport.quietLogger(), null);
+    }
+
+    @Benchmark
+    public WorldMirror.Result incrementalMirror() throws IOException {
+        return mirror.sync(world.getRoot(), target, BenchmarkSupport.WORLD);
+    }
+}
@@ -0,0 +1,108 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * direct 引擎的扫描和提交（与 GitManager.prepareWorld + commitSnapshots 相同的调用），
+ * 分别测试开启和关闭区域/NBT 编码，以及新对象写成松散对象和写入一个 pack。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DirectCommitBenchmark {
+    @Param({"16"})
+    public int regions;
+
+    @Param({"256"})
+    public int chunksPerRegion;
+
+    @Param({"50"})
+    public int players;
+
+    @Param({"0.05"})
+    public double mutationRate;
+
+    @Param({"true", "false"})
+    public boolean codec;
+
+    @Param({"pack", "loose"})
+    public String objects;
+
+    private Path dir;
+    private SyntheticWorld world;
+    private Repository repository;
+    private StatCache statCache;
+    private ExecutorService hashExecutor;
+    private ExcludeFilter excludeFilter;
+    private Logger logger;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("gitbackup-direct");
+        world = new SyntheticWorld(dir.resolve("server").resolve(BenchmarkSupport.WORLD), BenchmarkSupport.SEED,
+                regions, chunksPerRegion, players);
+        world.generate();
+        repository = FileRepositoryBuilder.create(dir.resolve("repo").resolve(Constants.DOT_GIT).toFile());
+        repository.create();
+        logger = BenchmarkSupport.quietLogger();
+        statCache = StatCache.load(dir.resolve("stat-cache.bin").toFile(), null, logger);
+        hashExecutor = BenchmarkSupport.hashExecutor();
+        excludeFilter = new ExcludeFilter(List.of("session.lock"));
+        backup("初始备份");
+    }
+
+    @Setup(Level.Invocation)
+    public void save() throws IOException {
+        world.mutate(mutationRate);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        hashExecutor.shutdownNow();
+        repository.close();
+        BenchmarkSupport.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public BackupDelta scanAndCommit() throws IOException {
+        return backup("自动备份");
+    }
+
+    private BackupDelta backup(String message) throws IOException {
+        SharedPackInserter packInserter = objects.equals("pack")
+                ? SharedPackInserter.open(repository, 1, DirectCommitEngine.DEFAULT_STREAM_THRESHOLD) : null;
+        DirectCommitEngine engine = new DirectCommitEngine(repository, logger, excludeFilter, statCache, hashExecutor);
+        engine.setRegionCodec(codec);
+        engine.setNbtCodec(codec);
+        engine.setPackInserter(packInserter);
+        try {
+            WorldSnapshot snapshot = engine.scan(world.getRoot(), BenchmarkSupport.WORLD);
+            BackupDelta delta = engine.commit(List.of(snapshot), message, BenchmarkSupport.ident());
+            statCache.commit(repository.resolve(Constants.HEAD));
+            return delta;
+        } finally {
+            if (packInserter != null) {
+                packInserter.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 备份历史列表（/backup list）：冷缓存读取第一页和最后一页，以及缓存命中时读取第一页。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HistoryBenchmark {
+    private static final int PAGE_SIZE = 10;
+
+    @Param({"1000"})
+    public int commits;
+
+    private Path dir;
+    private Repository repository;
+    private BackupHistory cached;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("gitbackup-history");
+        repository = FileRepositoryBuilder.create(dir.resolve("repo").resolve(Constants.DOT_GIT).toFile());
+        repository.create();
+
+        // 小世界上的一串真实备份提交
+        SyntheticWorld world = new SyntheticWorld(dir.resolve("server").resolve(BenchmarkSupport.WORLD),
+                BenchmarkSupport.SEED, 1, 16, 4);
+        world.generate();
+        StatCache statCache = StatCache.load(dir.resolve("stat-cache.bin").toFile(), null,
+                BenchmarkSupport.quietLogger());
+        ExecutorService hashExecutor = BenchmarkSupport.hashExecutor();
+        try {
+            for (int i = 0; i < commits; i++) {
+                if (i > 0) {
+                    world.mutate(0.25);
+                }
+                DirectCommitEngine engine = new DirectCommitEngine(repository, BenchmarkSupport.quietLogger(),
+                        new ExcludeFilter(List.of()), statCache, hashExecutor);
+                WorldSnapshot snapshot = engine.scan(world.getRoot(), BenchmarkSupport.WORLD);
+                engine.commit(List.of(snapshot), "自动备份 #" + i, BenchmarkSupport.ident());
+                statCache.commit(repository.resolve(Constants.HEAD));
+            }
+        } finally {
+            hashExecutor.shutdownNow();
+        }
+
+        cached = new BackupHistory(repository);
+        cached.getPage(0, PAGE_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        repository.close();
+        BenchmarkSupport.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public List<BackupRecord> firstPageCold() throws IOException {
+        return new BackupHistory(repository).getPage(0, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<BackupRecord> lastPageCold() throws IOException {
+        return new BackupHistory(repository).getPage(Math.max(0, commits - PAGE_SIZE), PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<BackupRecord> firstPageCached() throws IOException {
+        return cached.getPage(0, PAGE_SIZE);
+    }
+}
@@ -0,0 +1,104 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 恢复备份（与 GitManager.restoreBackup 相同的 RestoreEngine 暂存调用）。交替暂存两个相邻的备份，
+ * 与当前世界只有 mutationRate 比例的内容不同或完全相同；换入世界目录在下次启动时进行，不计入。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RestoreBenchmark {
+    @Param({"16"})
+    public int regions;
+
+    @Param({"256"})
+    public int chunksPerRegion;
+
+    @Param({"50"})
+    public int players;
+
+    @Param({"0.05"})
+    public double mutationRate;
+
+    @Param({"true", "false"})
+    public boolean codec;
+
+    private Path dir;
+    private SyntheticWorld world;
+    private Path restoreRoot;
+    private Repository repository;
+    private StatCache statCache;
+    private ExecutorService hashExecutor;
+    private RevCommit[] commits;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkSupport.createTempDir("gitbackup-restore");
+        world = new SyntheticWorld(dir.resolve("server").resolve(BenchmarkSupport.WORLD), BenchmarkSupport.SEED,
+                regions, chunksPerRegion, players);
+        world.generate();
+        restoreRoot = dir.resolve("server").resolve(".gitbackup-restore");
+        repository = FileRepositoryBuilder.create(dir.resolve("repo").resolve(Constants.DOT_GIT).toFile());
+        repository.create();
+        statCache = StatCache.load(dir.resolve("stat-cache.bin").toFile(), null, BenchmarkSupport.quietLogger());
+        hashExecutor = BenchmarkSupport.hashExecutor();
+
+        commits = new RevCommit[2];
+        commits[0] = backup("备份 A");
+        world.mutate(mutationRate);
+        commits[1] = backup("备份 B");
+    }
+
+    @Setup(Level.Invocation)
+    public void clearRestoreRoot() throws IOException {
+        BenchmarkSupport.deleteRecursively(restoreRoot);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        hashExecutor.shutdownNow();
+        repository.close();
+        BenchmarkSupport.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public RestoreEngine.Result restore() throws IOException {
+        RestoreEngine engine = new RestoreEngine(repository, BenchmarkSupport.quietLogger(), statCache, hashExecutor);
+        RevCommit commit = commits[next];
+        next ^= 1;
+        return engine.stageWorld(commit, BenchmarkSupport.WORLD, world.getRoot(), restoreRoot);
+    }
+
+    private RevCommit backup(String message) throws IOException {
+        DirectCommitEngine engine = new DirectCommitEngine(repository, BenchmarkSupport.quietLogger(),
+                new ExcludeFilter(List.of("session.lock")), statCache, hashExecutor);
+        engine.setRegionCodec(codec);
+        engine.setNbtCodec(codec);
+        WorldSnapshot snapshot = engine.scan(world.getRoot(), BenchmarkSupport.WORLD);
+        RevCommit commit = engine.commit(List.of(snapshot), message, BenchmarkSupport.ident()).getCommit();
+        statCache.commit(repository.resolve(Constants.HEAD));
+        return commit;
+    }
+}
@@ -0,0 +1,336 @@
+package com.yauntyour.gitbackup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 基准测试用的合成世界：按真实服务器的目录结构写出 level.dat、region/entities/poi 区域文件、
+ * playerdata/advancements/stats 玩家文件和 data 目录。内容完全由种子决定，同样的参数在不同提交上
+ * 生成相同的字节，结果可以直接比较。
+ * <p>
+ * {@link #mutate(double)} 模拟一次自动保存：按比例改写区块和玩家，只重写有变化的文件。
+ */
+public class SyntheticWorld {
+    private static final int BASE_TIME = 1_700_000_000;
+    private static final int SECTIONS = 8;
+    private static final String[] BLOCKS = {
+            "minecraft:stone", "minecraft:deepslate", "minecraft:dirt", "minecraft:grass_block",
+            "minecraft:water", "minecraft:air", "minecraft:andesite", "minecraft:coal_ore",
+            "minecraft:iron_ore", "minecraft:gravel", "minecraft:granite", "minecraft:oak_log"
+    };
+
+    private final Path root;
+    private final long seed;
+    private final int regionSide;
+    private final int chunksPerRegion;
+    private final int players;
+
+    // 每个区块当前的版本和时间戳，第一维是区域序号
+    private final int[][] generations;
+    private final int[][] timestamps;
+    private final int[] playerGenerations;
+    private int round;
+
+    /**
+     * @param regions         区域文件数量，按正方形排列（向上取整到平方数）
+     * @param chunksPerRegion 每个区域中已生成的区块数（1~1024）
+     * @param players         玩家数量
+     */
+    public SyntheticWorld(Path root, long seed, int regions, int chunksPerRegion, int players) {
+        this.root = root;
+        this.seed = seed;
+        this.regionSide = (int) Math.ceil(Math.sqrt(regions));
+        this.chunksPerRegion = Math.max(1, Math.min(RegionFile.CHUNK_COUNT, chunksPerRegion));
+        this.players = players;
+        int regionCount = regionSide * regionSide;
+        this.generations = new int[regionCount][RegionFile.CHUNK_COUNT];
+        this.timestamps = new int[regionCount][RegionFile.CHUNK_COUNT];
+        this.playerGenerations = new int[players];
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * 写出完整的世界目录。
+     */
+    public void generate() throws IOException {
+        Files.createDirectories(root);
+        Files.write(root.resolve("session.lock"), "☃".getBytes(StandardCharsets.UTF_8));
+        writeLevel();
+        for (int region = 0; region < generations.length; region++) {
+            for (int i = 0; i < chunksPerRegion; i++) {
+                timestamps[region][chunkIndex(region, i)] = BASE_TIME;
+            }
+            writeRegion(region);
+        }
+        for (int player = 0; player < players; player++) {
+            writePlayer(player);
+        }
+        Path data = Files.createDirectories(root.resolve("data"));
+        writeGzipNbt(data.resolve("raids.dat"), nbt(random(-1, 0), 4096));
+        writeGzipNbt(data.resolve("scoreboard.dat"), nbt(random(-2, 0), 2048));
+    }
+
+    /**
+     * 模拟一次保存：每个区块和玩家以 rate 的概率被改写，level.dat 每次都会改写。返回改写的文件数。
+     */
+    public int mutate(double rate) throws IOException {
+        round++;
+        Random random = random(-3, round);
+        int changed = 1;
+        writeLevel();
+
+        for (int region = 0; region < generations.length; region++) {
+            boolean dirty = false;
+            for (int i = 0; i < chunksPerRegion; i++) {
+                if (random.nextDouble() < rate) {
+                    int index = chunkIndex(region, i);
+                    generations[region][index]++;
+                    timestamps[region][index] = BASE_TIME + round;
+                    dirty = true;
+                }
+            }
+            if (dirty) {
+                writeRegion(region);
+                changed += 3;
+            }
+        }
+        for (int player = 0; player < players; player++) {
+            if (random.nextDouble() < rate) {
+                playerGenerations[player]++;
+                writePlayer(player);
+                changed += 3;
+            }
+        }
+        return changed;
+    }
+
+    private int chunkIndex(int region, int i) {
+        // 区块在区域内分散分布，而不是集中在开头
+        return (int) ((i * 613L + region * 31L) % RegionFile.CHUNK_COUNT);
+    }
+
+    private void writeLevel() throws IOException {
+        writeGzipNbt(root.resolve("level.dat"), nbt(random(-4, round), 1024));
+    }
+
+    private void writeRegion(int region) throws IOException {
+        int regionX = region % regionSide - regionSide / 2;
+        int regionZ = region / regionSide - regionSide / 2;
+        String name = "r." + regionX + "." + regionZ + ".mca";
+
+        RegionFile.Chunk[] blocks = new RegionFile.Chunk[RegionFile.CHUNK_COUNT];
+        RegionFile.Chunk[] entities = new RegionFile.Chunk[RegionFile.CHUNK_COUNT];
+        RegionFile.Chunk[] poi = new RegionFile.Chunk[RegionFile.CHUNK_COUNT];
+        for (int i = 0; i < chunksPerRegion; i++) {
+            int index = chunkIndex(region, i);
+            long chunkSeed = (long) region * RegionFile.CHUNK_COUNT + index;
+            int generation = generations[region][index];
+            blocks[index] = zlib(chunk(chunkSeed, generation, regionX * 32 + (index & 31), regionZ * 32 + (index >> 5)));
+            // 大约四分之一的区块有实体，十分之一有兴趣点
+            if (index % 4 == 0) {
+                entities[index] = zlib(nbt(random(chunkSeed + 1_000_000, generation), 512));
+            }
+            if (index % 10 == 0) {
+                poi[index] = zlib(nbt(random(chunkSeed + 2_000_000, generation), 256));
+            }
+        }
+        writeRegionFile(root.resolve("region").resolve(name), blocks, timestamps[region]);
+        writeRegionFile(root.resolve("entities").resolve(name), entities, timestamps[region]);
+        writeRegionFile(root.resolve("poi").resolve(name), poi, timestamps[region]);
+    }
+
+    private void writePlayer(int player) throws IOException {
+        String uuid = new UUID(seed, player).toString();
+        int generation = playerGenerations[player];
+        writeGzipNbt(Files.createDirectories(root.resolve("playerdata")).resolve(uuid + ".dat"),
+                nbt(random(10_000_000L + player, generation), 3072));
+
+        Random random = random(20_000_000L + player, generation);
+        StringBuilder advancements = new StringBuilder("{\n");
+        for (int i = 0; i < 40; i++) {
+            advancements.append("  \"minecraft:story/step_").append(i).append("\": {\"done\": ")
+                    .append(random.nextBoolean()).append("},\n");
+        }
+        advancements.append("  \"DataVersion\": 4440\n}\n");
+        Files.writeString(Files.createDirectories(root.resolve("advancements")).resolve(uuid + ".json"), advancements);
+
+        StringBuilder stats = new StringBuilder("{\"stats\":{\"minecraft:mined\":{");
+        for (int i = 0; i < BLOCKS.length; i++) {
+            stats.append(i == 0 ? "" : ",").append('"').append(BLOCKS[i]).append("\":").append(random.nextInt(100000));
+        }
+        stats.append("}},\"DataVersion\":4440}");
+        Files.writeString(Files.createDirectories(root.resolve("stats")).resolve(uuid + ".json"), stats);
+    }
+
+    /**
+     * 一个区块的 NBT：若干区段，每个区段是一个小调色板和按连续段分布的方块数据，压缩率接近真实区块。
+     * generation 改变时只改动其中一部分方块，与玩家挖掘、建造的效果类似。
+     */
+    private byte[] chunk(long chunkSeed, int generation, int chunkX, int chunkZ) throws IOException {
+        Random base = random(chunkSeed, 0);
+        Nbt nbt = new Nbt();
+        nbt.beginCompound("");
+        nbt.putInt("DataVersion", 4440);
+        nbt.putInt("xPos", chunkX);
+        nbt.putInt("zPos", chunkZ);
+        nbt.putString("Status", "minecraft:full");
+        nbt.putLong("LastUpdate", 1000L * generation + base.nextInt(1000));
+        nbt.putLong("InhabitedTime", 20L * generation);
+        nbt.beginList("sections", Nbt.COMPOUND, SECTIONS);
+        Random changes = random(chunkSeed, generation);
+        for (int section = 0; section < SECTIONS; section++) {
+            nbt.putByte("Y", (byte) (section - 4));
+            nbt.beginCompound("block_states");
+            int paletteSize = 2 + base.nextInt(7);
+            nbt.beginList("palette", Nbt.COMPOUND, paletteSize);
+            for (int i = 0; i < paletteSize; i++) {
+                nbt.putString("Name", BLOCKS[(section + i * 5) % BLOCKS.length]);
+                nbt.endCompound();
+            }
+            long[] data = new long[256];
+            long run = base.nextLong();
+            for (int i = 0; i < data.length; i++) {
+                if (base.nextInt(8) == 0) {
+                    run = base.nextLong();
+                }
+                data[i] = run;
+            }
+            if (generation > 0) {
+                for (int i = 0; i < 4; i++) {
+                    data[changes.nextInt(data.length)] = changes.nextLong();
+                }
+            }
+            nbt.putLongArray("data", data);
+            nbt.endCompound();
+            nbt.endCompound();
+        }
+        nbt.endCompound();
+        return nbt.toByteArray();
+    }
+
+    /**
+     * 一段大小约为 size 字节的普通 NBT，用于玩家、实体和 data 目录的文件。
+     */
+    private static byte[] nbt(Random random, int size) throws IOException {
+        Nbt nbt = new Nbt();
+        nbt.beginCompound("");
+        nbt.putInt("DataVersion", 4440);
+        int entries = size / 48;
+        nbt.beginList("Items", Nbt.COMPOUND, entries);
+        for (int i = 0; i < entries; i++) {
+            nbt.putString("id", BLOCKS[random.nextInt(BLOCKS.length)]);
+            nbt.putByte("Slot", (byte) i);
+            nbt.putInt("count", 1 + random.nextInt(64));
+            nbt.putLong("seed", random.nextInt(16));
+            nbt.endCompound();
+        }
+        nbt.endCompound();
+        return nbt.toByteArray();
+    }
+
+    private Random random(long salt, int generation) {
+        return new Random(seed * 0x9E3779B97F4A7C15L + salt * 0x100000001B3L + generation);
+    }
+
+    private static RegionFile.Chunk zlib(byte[] nbt) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(nbt.length / 4 + 64);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(buffer)) {
+            out.write(nbt);
+        }
+        return new RegionFile.Chunk(RegionFile.COMPRESSION_ZLIB, buffer.toByteArray());
+    }
+
+    private static void writeRegionFile(Path file, RegionFile.Chunk[] chunks, int[] timestamps) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            RegionFile.write(out, chunks, timestamps);
+        }
+    }
+
+    private static void writeGzipNbt(Path file, byte[] nbt) throws IOException {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+            out.write(nbt);
+        }
+    }
+
+    /**
+     * 只支持生成器用到的几种标签的 NBT 写出器。列表中的复合标签省略名字，由 endCompound 结束。
+     */
+    private static class Nbt {
+        static final byte END = 0;
+        static final byte BYTE = 1;
+        static final byte INT = 3;
+        static final byte LONG = 4;
+        static final byte STRING = 8;
+        static final byte LIST = 9;
+        static final byte COMPOUND = 10;
+        static final byte LONG_ARRAY = 12;
+
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(buffer);
+
+        void beginCompound(String name) throws IOException {
+            header(COMPOUND, name);
+        }
+
+        void endCompound() throws IOException {
+            out.writeByte(END);
+        }
+
+        void beginList(String name, byte type, int size) throws IOException {
+            header(LIST, name);
+            out.writeByte(type);
+            out.writeInt(size);
+        }
+
+        void putByte(String name, byte value) throws IOException {
+            header(BYTE, name);
+            out.writeByte(value);
+        }
+
+        void putInt(String name, int value) throws IOException {
+            header(INT, name);
+            out.writeInt(value);
+        }
+
+        void putLong(String name, long value) throws IOException {
+            header(LONG, name);
+            out.writeLong(value);
+        }
+
+        void putString(String name, String value) throws IOException {
+            header(STRING, name);
+            out.writeUTF(value);
+        }
+
+        void putLongArray(String name, long[] values) throws IOException {
+            header(LONG_ARRAY, name);
+            out.writeInt(values.length);
+            for (long value : values) {
+                out.writeLong(value);
+            }
+        }
+
+        byte[] toByteArray() throws IOException {
+            out.flush();
+            return buffer.toByteArray();
+        }
+
+        private void header(byte type, String name) throws IOException {
+            out.writeByte(type);
+            out.writeUTF(name);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 工作区模式的 add/status/commit 一轮（GitManager.commitWorktree）。每次调用前先模拟一次保存并镜像到工作区，
+ * 所以测得的只有 Git 部分。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WorktreeCommitBenchmark {
+    @Param({"16"})
+    public int regions;
+
+    @Param({"256"})
+    public int chunksPerRegion;
+
+    @Param({"50"})
+    public int players;
+
+    @Param({"0.05"})
+    public double mutationRate;
+
+    private Path dir;
+    private SyntheticWorld world;
+    private Path repoDir;
+    private WorldMirror mirror;
+    private Git git;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GitAPIException {
+        dir = BenchmarkSupport.createTempDir("gitbackup-worktree");
+        world = new SyntheticWorld(dir.resolve("server").resolve(BenchmarkSupport.WORLD), BenchmarkSupport.SEED,
+                regions, chunksPerRegion, players);
+        world.generate();
+        repoDir = dir.resolve("repo");
+        git = Git.init().setDirectory(repoDir.toFile()).call();
+        mirror = new WorldMirror(BenchmarkSupport.quietLogger(), new ExcludeFilter(List.of("session.lock")), false);
+        mirror.sync(world.getRoot(), repoDir.resolve(BenchmarkSupport.WORLD), BenchmarkSupport.WORLD);
+        GitManager.commitWorktree(git, repoDir.toFile(), "初始备份", BenchmarkSupport.ident());
+    }
+
+    @Setup(Level.Invocation)
+    public void save() throws IOException {
+        world.mutate(mutationRate);
+        mirror.sync(world.getRoot(), repoDir.resolve(BenchmarkSupport.WORLD), BenchmarkSupport.WORLD);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        git.close();
+        BenchmarkSupport.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public BackupDelta addStatusCommit() throws GitAPIException {
+        File backupDir = repoDir.toFile();
+        return GitManager.commitWorktree(git, backupDir, "自动备份", BenchmarkSupport.ident());
+    }
+}
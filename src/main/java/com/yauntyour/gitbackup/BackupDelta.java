@@ -0,0 +1,111 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一次备份相对于上一个提交的变化，由一次差异遍历得到，
+ * 同时用于判断是否需要提交、生成提交说明中的统计信息和日志。
+ */
+public class BackupDelta {
+    private final List<String> added = new ArrayList<>();
+    private final List<String> modified = new ArrayList<>();
+    private final List<String> removed = new ArrayList<>();
+    private long addedBytes;
+    private long modifiedBytes;
+    private long removedBytes;
+    private RevCommit commit;
+
+    public void addAdded(String path, long bytes) {
+        added.add(path);
+        addedBytes += bytes;
+    }
+
+    public void addModified(String path, long bytes) {
+        modified.add(path);
+        modifiedBytes += bytes;
+    }
+
+    public void addRemoved(String path, long bytes) {
+        removed.add(path);
+        removedBytes += bytes;
+    }
+
+    public List<String> getAdded() {
+        return Collections.unmodifiableList(added);
+    }
+
+    public List<String> getModified() {
+        return Collections.unmodifiableList(modified);
+    }
+
+    public List<String> getRemoved() {
+        return Collections.unmodifiableList(removed);
+    }
+
+    public long getAddedBytes() {
+        return addedBytes;
+    }
+
+    public long getModifiedBytes() {
+        return modifiedBytes;
+    }
+
+    public long getRemovedBytes() {
+        return removedBytes;
+    }
+
+    /**
+     * 新增和修改的文件的总大小，即本次备份需要写入的数据量。
+     */
+    public long getWrittenBytes() {
+        return addedBytes + modifiedBytes;
+    }
+
+    public int getChangedFileCount() {
+        return added.size() + modified.size() + removed.size();
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && modified.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * 本次备份创建的提交，没有变化而跳过提交时为 null。
+     */
+    public RevCommit getCommit() {
+        return commit;
+    }
+
+    public void setCommit(RevCommit commit) {
+        this.commit = commit;
+    }
+
+    public String summary() {
+        return "新增 " + added.size() + " 个文件 (" + formatBytes(addedBytes) + "), "
+                + "修改 " + modified.size() + " 个 (" + formatBytes(modifiedBytes) + "), "
+                + "删除 " + removed.size() + " 个 (" + formatBytes(removedBytes) + ")";
+    }
+
+    @Override
+    public String toString() {
+        return summary();
+    }
+
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String[] units = {"KiB", "MiB", "GiB", "TiB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+}
@@ -0,0 +1,143 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.SkipRevFilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 备份历史索引：缓存从 HEAD 开始连续的一段提交记录，翻页时只向后补读需要的部分，
+ * 新提交直接加到最前面。HEAD 被其他操作改变（例如保留策略重写历史）时整体重新加载。
+ */
+public class BackupHistory {
+    // 缓存的记录数上限，更靠后的页直接用 RevWalk 跳过读取
+    private static final int MAX_CACHED = 10000;
+
+    private final Repository repository;
+
+    // 以下字段由 this 保护；records 从新到旧排列
+    private final List<BackupRecord> records = new ArrayList<>();
+    private ObjectId head;
+    private ObjectId nextStart;
+
+    // 给主线程的补全使用的只读副本
+    private volatile List<BackupRecord> view = Collections.emptyList();
+
+    public BackupHistory(Repository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * 读取从新到旧第 offset 个开始的最多 limit 条记录。
+     */
+    public synchronized List<BackupRecord> getPage(int offset, int limit) throws IOException {
+        ObjectId current = repository.resolve(Constants.HEAD);
+        if (current == null) {
+            reset(null);
+            return Collections.emptyList();
+        }
+        if (!current.equals(head)) {
+            reset(current);
+        }
+
+        int end = offset + limit;
+        if (end > MAX_CACHED) {
+            return walk(current, offset, limit);
+        }
+        if (end > records.size() && nextStart != null) {
+            load(end - records.size());
+        }
+        if (offset >= records.size()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(records.subList(offset, Math.min(end, records.size())));
+    }
+
+    /**
+     * 新提交创建后调用。它的父提交正好是缓存的 HEAD 时直接加到最前面，否则下次读取时重新加载。
+     */
+    public synchronized void recordCommit(RevCommit commit) {
+        if (head != null && commit.getParentCount() > 0 && head.equals(commit.getParent(0))) {
+            records.add(0, BackupRecord.from(commit));
+            head = commit.copy();
+            if (records.size() > MAX_CACHED) {
+                // 超出上限的最旧记录留给下次补读
+                nextStart = records.remove(records.size() - 1).getId();
+            }
+            publish();
+        } else {
+            reset(null);
+        }
+    }
+
+    /**
+     * 用缓存中的记录补全提交 ID，不访问仓库，可以在主线程调用。
+     */
+    public List<String> completeIds(String prefix, int max) {
+        String partial = prefix.toLowerCase(Locale.ROOT);
+        List<String> ids = new ArrayList<>();
+        for (BackupRecord record : view) {
+            String shortId = record.getShortId();
+            if (shortId.startsWith(partial)) {
+                ids.add(shortId);
+                if (ids.size() >= max) {
+                    break;
+                }
+            }
+        }
+        return ids;
+    }
+
+    private void reset(ObjectId current) {
+        records.clear();
+        head = current;
+        nextStart = current;
+        publish();
+    }
+
+    private void load(int count) throws IOException {
+        try (RevWalk revWalk = new RevWalk(repository)) {
+            // 备份历史是一条直线，只沿第一父提交读取
+            revWalk.setFirstParent(true);
+            revWalk.markStart(revWalk.parseCommit(nextStart));
+            RevCommit last = null;
+            for (RevCommit commit : revWalk) {
+                if (count-- <= 0) {
+                    break;
+                }
+                records.add(BackupRecord.from(commit));
+                last = commit;
+            }
+            nextStart = last != null && last.getParentCount() > 0 ? last.getParent(0).copy() : null;
+        }
+        publish();
+    }
+
+    private List<BackupRecord> walk(ObjectId start, int offset, int limit) throws IOException {
+        List<BackupRecord> page = new ArrayList<>();
+        try (RevWalk revWalk = new RevWalk(repository)) {
+            revWalk.setFirstParent(true);
+            revWalk.setRevFilter(SkipRevFilter.create(offset));
+            revWalk.markStart(revWalk.parseCommit(start));
+            for (RevCommit commit : revWalk) {
+                page.add(BackupRecord.from(commit));
+                if (page.size() >= limit) {
+                    break;
+                }
+            }
+        }
+        return page;
+    }
+
+    private void publish() {
+        view = List.copyOf(records);
+    }
+}
@@ -0,0 +1,470 @@
+package com.yauntyour.gitbackup;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * 备份各阶段的耗时、计数器和内存占用。通过 JMX、Prometheus 文本文件和 /gitbackup status 查看。
+ * 可以在任意线程记录；一次备份的计数在 beginRun 时清零。
+ */
+public class BackupMetrics implements BackupMetricsMBean {
+    public static final String OBJECT_NAME = "com.yauntyour.gitbackup:type=BackupMetrics";
+    // 插件创建的后台线程都以此开头，统计内存分配时只计算这些线程
+    private static final String THREAD_PREFIX = "GitBackup-";
+
+    public enum Phase {
+        // 主线程保存世界和玩家数据
+        SAVE("save", "保存世界"),
+        // 建立快照暂存目录
+        SNAPSHOT("snapshot", "快照"),
+        // 扫描世界、写入对象（worktree 引擎下为同步到工作区）
+        SCAN("scan", "扫描"),
+        COMMIT("commit", "提交"),
+        RETENTION("retention", "保留策略"),
+        PUSH("push", "推送"),
+        MAINTENANCE("maintenance", "仓库维护");
+
+        private final String key;
+        private final String displayName;
+
+        Phase(String key, String displayName) {
+            this.key = key;
+            this.displayName = displayName;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private static final int PHASES = Phase.values().length;
+
+    private final AtomicLongArray lastNanos = new AtomicLongArray(PHASES);
+    private final AtomicLongArray totalNanos = new AtomicLongArray(PHASES);
+    private final AtomicLongArray phaseCount = new AtomicLongArray(PHASES);
+
+    private final AtomicLong backups = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastRunNanos;
+    private volatile long lastRunTime;
+    private volatile long runStart;
+
+    private final AtomicLong lastFilesScanned = new AtomicLong();
+    private final AtomicLong lastFilesWritten = new AtomicLong();
+    private final AtomicLong lastBytesWritten = new AtomicLong();
+    private final AtomicLong filesScanned = new AtomicLong();
+    private final AtomicLong filesWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong objectsWritten = new AtomicLong();
+    private final AtomicLong pushBytes = new AtomicLong();
+
+    // 本次备份开始时各备份线程已分配的字节数，以及 GC 次数和耗时
+    private final Map<Long, Long> allocationBase = new HashMap<>();
+    private long gcCountBase;
+    private long gcMillisBase;
+    private volatile long lastAllocatedBytes = -1;
+    private volatile long lastHeapPeakBytes;
+    private volatile long lastGcCount;
+    private volatile long lastGcMillis;
+
+    private ObjectName registeredName;
+    private volatile Path prometheusFile;
+
+    /**
+     * 开始一次备份：清零本次备份的阶段耗时和计数（推送和维护独立运行，不清零）。
+     */
+    public void beginRun() {
+        runStart = System.nanoTime();
+        for (Phase phase : new Phase[]{Phase.SAVE, Phase.SNAPSHOT, Phase.SCAN, Phase.COMMIT, Phase.RETENTION}) {
+            lastNanos.set(phase.ordinal(), 0);
+        }
+        lastFilesScanned.set(0);
+        lastFilesWritten.set(0);
+        lastBytesWritten.set(0);
+        beginMemory();
+    }
+
+    public void endRun(boolean success) {
+        lastRunNanos = System.nanoTime() - runStart;
+        endMemory();
+        lastRunTime = System.currentTimeMillis();
+        backups.incrementAndGet();
+        if (!success) {
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * 记录一个阶段的耗时。同一次备份中同一阶段多次记录（如每个世界保存一次）时累加。
+     */
+    public void record(Phase phase, long nanos) {
+        lastNanos.addAndGet(phase.ordinal(), nanos);
+        totalNanos.addAndGet(phase.ordinal(), nanos);
+        phaseCount.incrementAndGet(phase.ordinal());
+    }
+
+    /**
+     * 记录一次独立运行的阶段（推送、维护），覆盖上一次的耗时。
+     */
+    public void recordSingle(Phase phase, long nanos) {
+        lastNanos.set(phase.ordinal(), nanos);
+        totalNanos.addAndGet(phase.ordinal(), nanos);
+        phaseCount.incrementAndGet(phase.ordinal());
+    }
+
+    /**
+     * 一次扫描的结果：scanned 为扫描到的文件数，written 为重新读取并写入的文件数，bytes 为这些文件的大小，
+     * objects 为写入的对象数（区域文件按区块计）。
+     */
+    public void addScan(long scanned, long written, long bytes, long objects) {
+        lastFilesScanned.addAndGet(scanned);
+        lastFilesWritten.addAndGet(written);
+        lastBytesWritten.addAndGet(bytes);
+        filesScanned.addAndGet(scanned);
+        filesWritten.addAndGet(written);
+        bytesWritten.addAndGet(bytes);
+        objectsWritten.addAndGet(objects);
+    }
+
+    public void addPushBytes(long bytes) {
+        pushBytes.addAndGet(bytes);
+    }
+
+    /**
+     * 记录内存基准：各备份线程已分配的字节数、GC 计数，并重置堆内存池的峰值。
+     */
+    private synchronized void beginMemory() {
+        allocationBase.clear();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean allocation
+                && allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+            long[] ids = backupThreads(threads);
+            long[] bytes = allocation.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                allocationBase.put(ids[i], bytes[i]);
+            }
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+        gcCountBase = 0;
+        gcMillisBase = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCountBase += Math.max(0, gc.getCollectionCount());
+            gcMillisBase += Math.max(0, gc.getCollectionTime());
+        }
+    }
+
+    /**
+     * 计算本次备份中备份线程分配的内存、堆内存峰值和 GC 次数。
+     * 线程分配只统计备份结束时仍然存在的线程，备份中途退出的线程不计入。
+     */
+    private synchronized void endMemory() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean allocation
+                && allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+            long[] ids = backupThreads(threads);
+            long[] bytes = allocation.getThreadAllocatedBytes(ids);
+            long total = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] >= 0) {
+                    total += bytes[i] - allocationBase.getOrDefault(ids[i], 0L);
+                }
+            }
+            lastAllocatedBytes = total;
+        } else {
+            lastAllocatedBytes = -1;
+        }
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        lastHeapPeakBytes = peak;
+
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        lastGcCount = count - gcCountBase;
+        lastGcMillis = millis - gcMillisBase;
+    }
+
+    private static long[] backupThreads(ThreadMXBean threads) {
+        long[] ids = threads.getAllThreadIds();
+        ThreadInfo[] infos = threads.getThreadInfo(ids, 0);
+        long[] matched = new long[ids.length];
+        int count = 0;
+        for (ThreadInfo info : infos) {
+            if (info != null && info.getThreadName().startsWith(THREAD_PREFIX)) {
+                matched[count++] = info.getThreadId();
+            }
+        }
+        return Arrays.copyOf(matched, count);
+    }
+
+    public long getLastMillis(Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(lastNanos.get(phase.ordinal()));
+    }
+
+    public void registerMBean(Logger logger) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            // 插件重载后旧的实例可能还在
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (Exception e) {
+            logger.warning("注册 JMX 指标时出错: " + e.getMessage());
+        }
+    }
+
+    public void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (Exception ignored) {
+        }
+        registeredName = null;
+    }
+
+    /**
+     * 设置 export 写出的 Prometheus 文件，为 null 时不写出。
+     */
+    public void setPrometheusFile(Path prometheusFile) {
+        this.prometheusFile = prometheusFile;
+    }
+
+    /**
+     * 备份、推送或维护结束后调用，写出 Prometheus 文件（如果配置了）。
+     */
+    public void export(Logger logger) {
+        Path file = prometheusFile;
+        if (file == null) {
+            return;
+        }
+        try {
+            writePrometheus(file);
+        } catch (IOException e) {
+            logger.warning("写出备份指标时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 以 Prometheus 文本格式写出所有指标（先写临时文件再替换，供 node_exporter textfile 收集器读取）。
+     */
+    public synchronized void writePrometheus(Path file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        header(sb, "gitbackup_phase_seconds_total", "counter", "各阶段累计耗时");
+        for (Phase phase : Phase.values()) {
+            sample(sb, "gitbackup_phase_seconds_total", phase, seconds(totalNanos.get(phase.ordinal())));
+        }
+        header(sb, "gitbackup_phase_last_seconds", "gauge", "各阶段最近一次的耗时");
+        for (Phase phase : Phase.values()) {
+            sample(sb, "gitbackup_phase_last_seconds", phase, seconds(lastNanos.get(phase.ordinal())));
+        }
+        header(sb, "gitbackup_phase_runs_total", "counter", "各阶段运行次数");
+        for (Phase phase : Phase.values()) {
+            sample(sb, "gitbackup_phase_runs_total", phase, Long.toString(phaseCount.get(phase.ordinal())));
+        }
+
+        metric(sb, "gitbackup_backups_total", "counter", "备份次数", Long.toString(backups.get()));
+        metric(sb, "gitbackup_backup_failures_total", "counter", "失败的备份次数", Long.toString(failures.get()));
+        metric(sb, "gitbackup_last_backup_seconds", "gauge", "最近一次备份的总耗时", seconds(lastRunNanos));
+        metric(sb, "gitbackup_last_backup_timestamp_seconds", "gauge", "最近一次备份结束的时间",
+                Long.toString(lastRunTime / 1000));
+        metric(sb, "gitbackup_last_files_scanned", "gauge", "最近一次备份扫描的文件数",
+                Long.toString(lastFilesScanned.get()));
+        metric(sb, "gitbackup_last_files_written", "gauge", "最近一次备份重新写入的文件数",
+                Long.toString(lastFilesWritten.get()));
+        metric(sb, "gitbackup_last_bytes_written", "gauge", "最近一次备份重新写入的文件大小",
+                Long.toString(lastBytesWritten.get()));
+        if (lastAllocatedBytes >= 0) {
+            metric(sb, "gitbackup_last_allocated_bytes", "gauge", "最近一次备份中备份线程分配的内存",
+                    Long.toString(lastAllocatedBytes));
+        }
+        metric(sb, "gitbackup_last_heap_peak_bytes", "gauge", "最近一次备份期间堆内存各内存池峰值之和（包括服务器本身）",
+                Long.toString(lastHeapPeakBytes));
+        metric(sb, "gitbackup_last_gc_count", "gauge", "最近一次备份期间的 GC 次数", Long.toString(lastGcCount));
+        metric(sb, "gitbackup_last_gc_seconds", "gauge", "最近一次备份期间的 GC 耗时",
+                seconds(TimeUnit.MILLISECONDS.toNanos(lastGcMillis)));
+        metric(sb, "gitbackup_files_scanned_total", "counter", "扫描的文件数", Long.toString(filesScanned.get()));
+        metric(sb, "gitbackup_files_written_total", "counter", "重新写入的文件数", Long.toString(filesWritten.get()));
+        metric(sb, "gitbackup_bytes_written_total", "counter", "重新写入的文件大小", Long.toString(bytesWritten.get()));
+        metric(sb, "gitbackup_objects_written_total", "counter", "写入的对象数", Long.toString(objectsWritten.get()));
+        metric(sb, "gitbackup_push_bytes_total", "counter", "通过 HTTP(S) 推送上传的字节数",
+                Long.toString(pushBytes.get()));
+
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(temp, sb, StandardCharsets.UTF_8);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, Phase phase, String value) {
+        sb.append(name).append("{phase=\"").append(phase.getKey()).append("\"} ").append(value).append('\n');
+    }
+
+    private static void metric(StringBuilder sb, String name, String type, String help, String value) {
+        header(sb, name, type, help);
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e9);
+    }
+
+    @Override
+    public long getBackups() {
+        return backups.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getLastRunMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastRunNanos);
+    }
+
+    @Override
+    public long getLastRunTime() {
+        return lastRunTime;
+    }
+
+    @Override
+    public long getLastSaveMillis() {
+        return getLastMillis(Phase.SAVE);
+    }
+
+    @Override
+    public long getLastSnapshotMillis() {
+        return getLastMillis(Phase.SNAPSHOT);
+    }
+
+    @Override
+    public long getLastScanMillis() {
+        return getLastMillis(Phase.SCAN);
+    }
+
+    @Override
+    public long getLastCommitMillis() {
+        return getLastMillis(Phase.COMMIT);
+    }
+
+    @Override
+    public long getLastRetentionMillis() {
+        return getLastMillis(Phase.RETENTION);
+    }
+
+    @Override
+    public long getLastPushMillis() {
+        return getLastMillis(Phase.PUSH);
+    }
+
+    @Override
+    public long getLastMaintenanceMillis() {
+        return getLastMillis(Phase.MAINTENANCE);
+    }
+
+    @Override
+    public long getLastFilesScanned() {
+        return lastFilesScanned.get();
+    }
+
+    @Override
+    public long getLastFilesWritten() {
+        return lastFilesWritten.get();
+    }
+
+    @Override
+    public long getLastBytesWritten() {
+        return lastBytesWritten.get();
+    }
+
+    @Override
+    public long getFilesScanned() {
+        return filesScanned.get();
+    }
+
+    @Override
+    public long getFilesWritten() {
+        return filesWritten.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public long getObjectsWritten() {
+        return objectsWritten.get();
+    }
+
+    @Override
+    public long getPushBytes() {
+        return pushBytes.get();
+    }
+
+    @Override
+    public long getLastAllocatedBytes() {
+        return lastAllocatedBytes;
+    }
+
+    @Override
+    public long getLastHeapPeakBytes() {
+        return lastHeapPeakBytes;
+    }
+
+    @Override
+    public long getLastGcCount() {
+        return lastGcCount;
+    }
+
+    @Override
+    public long getLastGcMillis() {
+        return lastGcMillis;
+    }
+}
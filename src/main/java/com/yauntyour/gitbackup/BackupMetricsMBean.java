@@ -0,0 +1,55 @@
+package com.yauntyour.gitbackup;
+
+/**
+ * 通过 JMX 暴露的备份指标，ObjectName 为 {@link BackupMetrics#OBJECT_NAME}。时长单位为毫秒。
+ */
+public interface BackupMetricsMBean {
+    long getBackups();
+
+    long getFailures();
+
+    long getLastRunMillis();
+
+    long getLastRunTime();
+
+    long getLastSaveMillis();
+
+    long getLastSnapshotMillis();
+
+    long getLastScanMillis();
+
+    long getLastCommitMillis();
+
+    long getLastRetentionMillis();
+
+    long getLastPushMillis();
+
+    long getLastMaintenanceMillis();
+
+    long getLastFilesScanned();
+
+    long getLastFilesWritten();
+
+    long getLastBytesWritten();
+
+    long getFilesScanned();
+
+    long getFilesWritten();
+
+    long getBytesWritten();
+
+    long getObjectsWritten();
+
+    long getPushBytes();
+
+    /**
+     * 最近一次备份中插件后台线程分配的字节数，JVM 不支持统计时为 -1。
+     */
+    long getLastAllocatedBytes();
+
+    long getLastHeapPeakBytes();
+
+    long getLastGcCount();
+
+    long getLastGcMillis();
+}
@@ -0,0 +1,438 @@
+package com.yauntyour.gitbackup;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分阶段的异步备份流水线：
+ * 主线程逐个保存世界（每 tick 一个），保存完的世界立即在各自的后台线程中并行扫描/复制，
+ * 全部完成后在后台提交，最后在后台推送和清理。
+ * 同一时间只运行一个备份，期间到达的请求合并为下一次备份。
+ */
+public class BackupPipeline {
+    private final GitBackupPlugin plugin;
+    private final ConfigManager configManager;
+    private final GitManager gitManager;
+    private final ExecutorService executor;
+    private final ExecutorService scanExecutor;
+    private final SnapshotStager stager;
+    private final DirtyRegionTracker dirtyRegionTracker;
+    private final BackupMetrics metrics;
+    private Job current;
+    private Job queued;
+
+    public BackupPipeline(GitBackupPlugin plugin) {
+        this.plugin = plugin;
+        this.configManager = plugin.getConfigManager();
+        this.gitManager = plugin.getGitManager();
+        this.stager = new SnapshotStager(plugin.getLogger());
+        this.dirtyRegionTracker = plugin.getDirtyRegionTracker();
+        this.metrics = gitManager.getMetrics();
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "GitBackup-Pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // 每个世界独立扫描并构建子树，总耗时取决于最慢的世界而不是所有世界之和
+        int scanThreads = configManager.getParallelWorlds();
+        if (scanThreads <= 0) {
+            scanThreads = Math.max(1, configManager.getWorlds().size());
+        }
+        if (configManager.getThrottleMaxThreads() > 0) {
+            scanThreads = Math.min(scanThreads, configManager.getThrottleMaxThreads());
+        }
+        AtomicInteger counter = new AtomicInteger();
+        this.scanExecutor = Executors.newFixedThreadPool(scanThreads, runnable -> {
+            Thread thread = new Thread(runnable, "GitBackup-Scan-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // 启动时在后台检测一次 reflink 支持，备份时直接使用缓存的结果
+        SnapshotStager.Mode mode = SnapshotStager.Mode.parse(configManager.getSnapshotMode());
+        if (mode == SnapshotStager.Mode.AUTO || mode == SnapshotStager.Mode.REFLINK) {
+            Path stagingRoot = stager.getStagingRoot(Bukkit.getWorldContainer().toPath());
+            executor.execute(() -> stager.isReflinkSupported(stagingRoot));
+        }
+    }
+
+    /**
+     * 请求备份所有配置的世界，立即返回。返回 false 表示已有备份在进行，本次请求已合并到下一次备份。
+     */
+    public boolean request(String message, CommandSender sender) {
+        return request(message, sender, configManager.getWorlds());
+    }
+
+    /**
+     * 只备份 worldNames 中的世界，其余世界在提交中沿用上一次备份的内容。
+     */
+    public synchronized boolean request(String message, CommandSender sender, Collection<String> worldNames) {
+        if (current == null) {
+            current = new Job(message, sender, worldNames);
+            start(current);
+            return true;
+        }
+
+        if (queued == null) {
+            queued = new Job(message, sender, worldNames);
+        } else {
+            queued.merge(message, sender, worldNames);
+        }
+        return false;
+    }
+
+    public synchronized boolean isRunning() {
+        return current != null;
+    }
+
+    /**
+     * 恢复开始前调用。有备份在进行时返回 false，调用者应拒绝恢复；否则标记恢复待重启并返回 true，
+     * 之后不会再开始备份（包括自动备份和关闭服务器前的备份），也就不会保存世界或改动自动保存设置。
+     */
+    public synchronized boolean suspendForRestore() {
+        if (current != null) {
+            return false;
+        }
+        gitManager.setRestorePending();
+        return true;
+    }
+
+    private void start(Job job) {
+        if (!gitManager.isReady()) {
+            job.notify(ChatColor.RED + "Git仓库未初始化!");
+            finish();
+            return;
+        }
+        if (gitManager.isRestorePending()) {
+            job.notify(ChatColor.RED + "正在恢复或已恢复备份，重启服务器前不会创建新的备份");
+            finish();
+            return;
+        }
+
+        job.notify(ChatColor.YELLOW + "开始创建备份...");
+        metrics.beginRun();
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            try {
+                if (configManager.shouldSaveWorld()) {
+                    long saveStart = System.nanoTime();
+                    Bukkit.savePlayers();
+                    metrics.record(BackupMetrics.Phase.SAVE, System.nanoTime() - saveStart);
+                }
+            } catch (RuntimeException e) {
+                abort(job, e);
+                return;
+            }
+            saveNext(job, 0);
+        });
+    }
+
+    /**
+     * 主线程阶段：保存第 index 个世界并把它交给后台扫描，下一个 tick 再保存下一个世界，
+     * 这样后台扫描第 N 个世界的同时主线程可以保存第 N+1 个世界。
+     */
+    private void saveNext(Job job, int index) {
+        try {
+            saveWorld(job, index);
+        } catch (RuntimeException e) {
+            abort(job, e);
+        }
+    }
+
+    private void saveWorld(Job job, int index) {
+        if (index == 0) {
+            job.worldList = new ArrayList<>(job.worldNames);
+            job.scanStart = System.nanoTime();
+        }
+        if (index >= job.worldList.size()) {
+            if (gitManager.hasExtraRoots()) {
+                job.scans.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return gitManager.prepareExtra();
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, scanExecutor));
+            }
+            commitStage(job);
+            return;
+        }
+
+        String worldName = job.worldList.get(index);
+        World world = Bukkit.getWorld(worldName);
+        if (world == null) {
+            plugin.getLogger().warning("世界 '" + worldName + "' 不存在，跳过备份");
+        } else {
+            if (configManager.shouldSaveWorld()) {
+                long saveStart = System.nanoTime();
+                world.save();
+                metrics.record(BackupMetrics.Phase.SAVE, System.nanoTime() - saveStart);
+            }
+            // 保存后仍加载着的区块随时可能被写回，一并视为已修改
+            dirtyRegionTracker.markLoadedChunks(world);
+            long[] dirtyRegions = dirtyRegionTracker.drain(worldName);
+            SnapshotStager.Mode mode = SnapshotStager.Mode.parse(configManager.getSnapshotMode());
+            if (mode == SnapshotStager.Mode.OFF) {
+                File worldFolder = world.getWorldFolder();
+                job.scans.add(supplyPrepare(worldName, worldFolder, false, dirtyRegions));
+            } else {
+                job.scans.add(snapshot(job, world, mode, dirtyRegions));
+            }
+        }
+
+        Bukkit.getScheduler().runTask(plugin, () -> saveNext(job, index + 1));
+    }
+
+    /**
+     * 主线程阶段出错：等已经开始的扫描结束后丢弃本次备份（取出的修改记录已经丢失，下一次完整扫描），
+     * 然后开始排队的备份，不会让后面的备份一直等待。
+     */
+    private void abort(Job job, RuntimeException error) {
+        plugin.getLogger().severe("备份时出错: " + error.getMessage());
+        error.printStackTrace();
+        job.notify(ChatColor.RED + "备份创建失败，请查看控制台获取详细信息");
+        CompletableFuture.allOf(job.scans.toArray(new CompletableFuture[0]))
+                .whenCompleteAsync((ignored, scanError) -> {
+                    gitManager.discardSnapshots();
+                    job.worldNames.forEach(dirtyRegionTracker::requireFullScan);
+                    metrics.endRun(false);
+                    metrics.export(plugin.getLogger());
+                    finish();
+                }, executor);
+    }
+
+    private CompletableFuture<WorldSnapshot> supplyPrepare(String worldName, File folder, boolean staged,
+                                                           long[] dirtyRegions) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return gitManager.prepareWorld(worldName, folder, staged, dirtyRegions);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, scanExecutor);
+    }
+
+    /**
+     * 关闭自动保存并在后台建立快照（reflink/硬链接，不可用时增量复制），完成后回到主线程恢复自动保存。
+     * 主线程不会等待子进程或文件复制。暂停时长会记录到日志。
+     */
+    private CompletableFuture<WorldSnapshot> snapshot(Job job, World world, SnapshotStager.Mode mode,
+                                                      long[] dirtyRegions) {
+        String worldName = world.getName();
+        Path worldFolder = world.getWorldFolder().toPath();
+        File stagingDir = stager.getStagingDir(worldName, worldFolder).toFile();
+        ExcludeFilter excludeFilter = new ExcludeFilter(configManager.getExcludes());
+        boolean autoSave = world.isAutoSave();
+
+        world.setAutoSave(false);
+        try {
+            long pauseStart = System.nanoTime();
+            CompletableFuture<SnapshotStager.Mode> staged = CompletableFuture.supplyAsync(() -> {
+                long stageStart = System.nanoTime();
+                SnapshotStager.Mode used = SnapshotStager.Mode.COPY;
+                try {
+                    if (mode != SnapshotStager.Mode.COPY) {
+                        try {
+                            used = stager.stageLinks(worldName, worldFolder, mode, excludeFilter);
+                        } catch (IOException e) {
+                            plugin.getLogger().warning("建立快照时出错，改用增量复制: " + e.getMessage());
+                        }
+                    }
+                    if (used == SnapshotStager.Mode.COPY) {
+                        WorldMirror.Result result = stager.stageCopy(worldName, worldFolder, excludeFilter,
+                                gitManager.getThrottle());
+                        plugin.getLogger().info("世界 '" + worldName + "' 快照复制完成: " + result);
+                    }
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+                metrics.record(BackupMetrics.Phase.SNAPSHOT, System.nanoTime() - stageStart);
+                return used;
+            }, scanExecutor);
+            staged.whenComplete((used, error) -> Bukkit.getScheduler().runTask(plugin, () -> {
+                world.setAutoSave(autoSave);
+                if (used != null) {
+                    logPause(worldName, used, System.nanoTime() - pauseStart);
+                }
+            }));
+            return staged.thenComposeAsync(used -> supplyPrepare(worldName, stagingDir, true, dirtyRegions)
+                    .whenComplete((snapshot, error) -> stager.release(worldName, worldFolder, used)), scanExecutor);
+        } catch (RuntimeException e) {
+            // 出错时不能让自动保存一直关闭
+            world.setAutoSave(autoSave);
+            throw e;
+        }
+    }
+
+    private void logPause(String worldName, SnapshotStager.Mode used, long pauseNanos) {
+        plugin.getLogger().info(String.format("世界 '%s' 快照完成 (%s)，自动保存暂停 %.2f ms",
+                worldName, used.name().toLowerCase(), pauseNanos / 1_000_000.0));
+    }
+
+    private void commitStage(Job job) {
+        CompletableFuture.allOf(job.scans.toArray(new CompletableFuture[0]))
+                .thenApplyAsync(ignored -> {
+                    // 从第一个世界开始扫描到所有世界完成的时间
+                    metrics.record(BackupMetrics.Phase.SCAN, System.nanoTime() - job.scanStart);
+                    List<WorldSnapshot> snapshots = new ArrayList<>();
+                    job.scans.forEach(scan -> snapshots.add(scan.join()));
+                    try {
+                        return gitManager.commitSnapshots(snapshots, job.getMessage());
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }, executor)
+                .thenApplyAsync(delta -> {
+                    if (delta.isEmpty()) {
+                        job.notify(ChatColor.YELLOW + "没有检测到更改，跳过提交");
+                        return delta;
+                    }
+                    job.notify(ChatColor.GREEN + "备份创建成功! " + delta.summary());
+
+                    // 推送和清理阶段
+                    gitManager.pushAndCleanup();
+                    return delta;
+                }, executor)
+                .whenComplete((delta, error) -> {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                                ? error.getCause() : error;
+                        gitManager.discardSnapshots();
+                        // 取出的修改记录已经丢失，下一次完整扫描
+                        job.worldList.forEach(dirtyRegionTracker::requireFullScan);
+                        plugin.getLogger().severe("备份时出错: " + cause.getMessage());
+                        cause.printStackTrace();
+                        job.notify(ChatColor.RED + "备份创建失败，请查看控制台获取详细信息");
+                    }
+                    metrics.endRun(error == null);
+                    metrics.export(plugin.getLogger());
+                    finish();
+                });
+    }
+
+    private void finish() {
+        Job next;
+        synchronized (this) {
+            next = queued;
+            queued = null;
+            current = next;
+        }
+        if (next != null) {
+            start(next);
+        }
+    }
+
+    /**
+     * 关闭服务器时在当前（主）线程保存并备份所有世界，不推送、不执行保留策略，它们会在下一次备份后进行。
+     * 必须在 shutdown 之后调用，此时不会有其他备份在进行。
+     */
+    public void backupOnShutdown(String message) {
+        if (!gitManager.isReady() || gitManager.isRestorePending()) {
+            return;
+        }
+
+        plugin.getLogger().info("关闭服务器前创建备份...");
+        metrics.beginRun();
+        boolean success = false;
+        try {
+            if (configManager.shouldSaveWorld()) {
+                Bukkit.savePlayers();
+            }
+            List<WorldSnapshot> snapshots = new ArrayList<>();
+            for (String worldName : configManager.getWorlds()) {
+                World world = Bukkit.getWorld(worldName);
+                if (world == null) {
+                    continue;
+                }
+                if (configManager.shouldSaveWorld()) {
+                    world.save();
+                }
+                dirtyRegionTracker.markLoadedChunks(world);
+                snapshots.add(gitManager.prepareWorld(worldName, world.getWorldFolder(), false,
+                        dirtyRegionTracker.drain(worldName)));
+            }
+            if (gitManager.hasExtraRoots()) {
+                snapshots.add(gitManager.prepareExtra());
+            }
+            BackupDelta delta = gitManager.commitSnapshots(snapshots, message);
+            if (!delta.isEmpty()) {
+                plugin.getLogger().info("关闭前备份完成: " + delta.summary());
+            }
+            success = true;
+        } catch (Exception e) {
+            gitManager.discardSnapshots();
+            plugin.getLogger().severe("关闭前备份时出错: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            metrics.endRun(success);
+            metrics.export(plugin.getLogger());
+        }
+    }
+
+    public void shutdown() {
+        scanExecutor.shutdown();
+        executor.shutdown();
+        try {
+            // 让正在进行的提交完成，避免留下不完整的状态
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("等待备份完成超时");
+                scanExecutor.shutdownNow();
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scanExecutor.shutdownNow();
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Job {
+        private final Set<String> messages = new LinkedHashSet<>();
+        private final List<CommandSender> senders = new ArrayList<>();
+        private final Set<String> worldNames = new LinkedHashSet<>();
+        private final List<CompletableFuture<WorldSnapshot>> scans = new ArrayList<>();
+        private List<String> worldList;
+        private long scanStart;
+
+        private Job(String message, CommandSender sender, Collection<String> worldNames) {
+            merge(message, sender, worldNames);
+        }
+
+        private void merge(String message, CommandSender sender, Collection<String> worlds) {
+            messages.add(message);
+            worldNames.addAll(worlds);
+            if (sender != null && !senders.contains(sender)) {
+                senders.add(sender);
+            }
+        }
+
+        private String getMessage() {
+            return String.join("; ", messages);
+        }
+
+        private void notify(String message) {
+            if (senders.isEmpty() || !plugin.isEnabled()) {
+                return;
+            }
+            // 发送消息统一回到主线程
+            Bukkit.getScheduler().runTask(plugin, () -> senders.forEach(sender -> sender.sendMessage(message)));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+/**
+ * 备份历史中一个提交的轻量记录，只保留列表和补全需要的字段。
+ */
+public class BackupRecord {
+    private static final int ABBREVIATED_LENGTH = 8;
+
+    private final ObjectId id;
+    private final long time;
+    private final String message;
+    private final String summary;
+
+    public BackupRecord(ObjectId id, long time, String message, String summary) {
+        this.id = id;
+        this.time = time;
+        this.message = message;
+        this.summary = summary;
+    }
+
+    public static BackupRecord from(RevCommit commit) {
+        // 提交信息的第二段是 BackupDelta 写入的变更统计
+        String fullMessage = commit.getFullMessage();
+        String summary = "";
+        int blank = fullMessage.indexOf("\n\n");
+        if (blank >= 0) {
+            String rest = fullMessage.substring(blank + 2).trim();
+            int end = rest.indexOf('\n');
+            summary = end >= 0 ? rest.substring(0, end) : rest;
+        }
+        return new BackupRecord(commit.copy(), commit.getCommitTime() * 1000L, commit.getShortMessage(), summary);
+    }
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    public String getShortId() {
+        return id.abbreviate(ABBREVIATED_LENGTH).name();
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * 变更统计，例如 "新增 3 个文件 (1.2 MB), 修改 ..."；旧的提交可能没有，返回空字符串。
+     */
+    public String getSummary() {
+        return summary;
+    }
+}
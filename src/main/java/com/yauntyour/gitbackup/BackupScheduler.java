@@ -1,47 +1,225 @@
 package com.yauntyour.gitbackup;
 
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.scheduler.BukkitTask;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 自动备份调度。每分钟在主线程检查一次，每个世界在以下情况下到期：
+ * 距上次备份达到 interval（最长间隔），或启用备份策略时估计的修改区块数/数据量超过阈值、最后一名玩家退出。
+ * 策略还要求两次备份之间至少间隔 min-spacing，并跳过上次备份以来没有玩家在线的世界。
+ * 同一时刻到期的世界合并为一次备份。
+ */
 public class BackupScheduler {
+    // 20 ticks = 1秒
+    private static final long CHECK_TICKS = 60 * 20;
+
     private final JavaPlugin plugin;
     private final ConfigManager configManager;
     private final GitManager gitManager;
+    private final BackupPipeline backupPipeline;
+    private final DirtyRegionTracker dirtyRegionTracker;
     private BukkitTask backupTask;
 
+    // 以下字段只在主线程访问，重新加载配置后保留
+    private final Map<String, Integer> intervals = new LinkedHashMap<>();
+    private final Map<String, Long> lastBackup = new HashMap<>();
+    private long lastAnyBackup;
+    private long lastPlayerSeen;
+    private boolean quitPending;
+
     public BackupScheduler(JavaPlugin plugin) {
         this.plugin = plugin;
         this.configManager = ((GitBackupPlugin) plugin).getConfigManager();
         this.gitManager = ((GitBackupPlugin) plugin).getGitManager();
+        this.backupPipeline = ((GitBackupPlugin) plugin).getBackupPipeline();
+        this.dirtyRegionTracker = ((GitBackupPlugin) plugin).getDirtyRegionTracker();
     }
 
     public void startScheduledBackups() {
-        int interval = configManager.getBackupInterval();
+        intervals.clear();
+        for (String worldName : configManager.getWorlds()) {
+            int interval = configManager.getWorldInterval(worldName);
+            if (interval > 0) {
+                intervals.put(worldName, interval);
+            }
+        }
 
-        if (interval <= 0) {
+        if (intervals.isEmpty()) {
             plugin.getLogger().info("自动备份已禁用");
             return;
         }
 
-        // 将分钟转换为ticks (20 ticks = 1秒)
-        long intervalTicks = interval * 60 * 20;
+        long now = System.currentTimeMillis();
+        intervals.keySet().forEach(worldName -> lastBackup.putIfAbsent(worldName, now));
 
         backupTask = new BukkitRunnable() {
             @Override
             public void run() {
-                plugin.getLogger().info("开始自动备份...");
-                gitManager.commitChanges("自动备份 - " + System.currentTimeMillis());
+                check();
             }
-        }.runTaskTimerAsynchronously(plugin, intervalTicks, intervalTicks);
+        }.runTaskTimer(plugin, CHECK_TICKS, CHECK_TICKS);
 
-        plugin.getLogger().info("已启动自动备份，间隔: " + interval + " 分钟");
+        intervals.forEach((worldName, interval) ->
+                plugin.getLogger().info("已启动自动备份 '" + worldName + "'，最长间隔: " + interval + " 分钟"));
+        if (configManager.isBackupPolicyEnabled()) {
+            plugin.getLogger().info("备份策略已启用: 修改区块阈值 " + configManager.getPolicyDirtyChunks()
+                    + "，最短间隔 " + configManager.getPolicyMinSpacing() + " 分钟");
+        }
     }
 
     public void stopScheduledBackups() {
         if (backupTask != null) {
             backupTask.cancel();
+            backupTask = null;
             plugin.getLogger().info("已停止自动备份");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * 玩家加入或退出（不是最后一名）时调用。
+     */
+    public void playerActive() {
+        lastPlayerSeen = System.currentTimeMillis();
+    }
+
+    /**
+     * 最后一名玩家退出时调用，按配置安排一次备份。
+     */
+    public void lastPlayerQuit() {
+        lastPlayerSeen = System.currentTimeMillis();
+        if (backupTask != null && configManager.isBackupPolicyEnabled() && configManager.shouldBackupOnLastQuit()) {
+            quitPending = true;
+            check();
+        }
+    }
+
+    /**
+     * 关闭服务器时是否需要备份：开启了 on-shutdown，没有恢复待重启，并且没有因为无人在线而应跳过。
+     */
+    public boolean shouldBackupOnShutdown() {
+        // 恢复后关闭服务器时保存世界会覆盖已恢复的文件
+        if (!configManager.shouldBackupOnShutdown() || gitManager.isRestorePending()) {
+            return false;
+        }
+        if (!configManager.isBackupPolicyEnabled() || !configManager.shouldSkipIdleBackups()) {
+            return true;
+        }
+        long oldest = lastBackup.values().stream().mapToLong(Long::longValue).min().orElse(0);
+        return lastPlayerSeen >= oldest;
+    }
+
+    private void check() {
+        // 恢复开始后到重启前暂停自动备份
+        if (gitManager.isRestorePending()) {
+            return;
+        }
+        long time = System.currentTimeMillis();
+        boolean policy = configManager.isBackupPolicyEnabled();
+        if (policy) {
+            recordActivity(time);
+        }
+
+        Map<String, String> due = new LinkedHashMap<>();
+        intervals.forEach((worldName, interval) -> {
+            String reason = dueReason(worldName, interval, time, policy);
+            if (reason != null) {
+                due.put(worldName, reason);
+            }
+        });
+        if (due.isEmpty()) {
+            return;
+        }
+
+        if (policy) {
+            // 未到最短间隔时保持到期状态，下次检查再备份
+            if (time - lastAnyBackup < configManager.getPolicyMinSpacing() * 60_000L) {
+                return;
+            }
+            if (configManager.shouldSkipIdleBackups()) {
+                due.keySet().removeIf(worldName -> {
+                    if (lastPlayerSeen >= lastBackup.get(worldName)) {
+                        return false;
+                    }
+                    plugin.getLogger().info("自上次备份以来没有玩家在线，跳过世界 '" + worldName + "' 的自动备份");
+                    lastBackup.put(worldName, time);
+                    return true;
+                });
+                if (due.isEmpty()) {
+                    return;
+                }
+            }
+        }
+
+        String message = "自动备份 - " + time;
+        if (due.size() < configManager.getWorlds().size()) {
+            message += " (" + String.join(", ", due.keySet()) + ")";
+        }
+        StringBuilder details = new StringBuilder();
+        due.forEach((worldName, reason) -> {
+            if (details.length() > 0) {
+                details.append(", ");
+            }
+            details.append(worldName).append(": ").append(reason);
+        });
+        plugin.getLogger().info("开始自动备份 (" + details + ")");
+        if (!backupPipeline.request(message, null, due.keySet())) {
+            plugin.getLogger().info("上一次备份尚未完成，本次自动备份将在其完成后执行");
+        }
+
+        due.keySet().forEach(worldName -> lastBackup.put(worldName, time));
+        lastAnyBackup = time;
+        quitPending = false;
+    }
+
+    /**
+     * 世界到期的原因，未到期时返回 null。
+     */
+    private String dueReason(String worldName, int interval, long time, boolean policy) {
+        if (time - lastBackup.get(worldName) >= interval * 60_000L) {
+            return "达到最长间隔";
+        }
+        if (!policy) {
+            return null;
+        }
+
+        int dirtyChunks = dirtyRegionTracker.getDirtyChunks(worldName);
+        int chunkThreshold = configManager.getPolicyDirtyChunks();
+        if (chunkThreshold > 0 && dirtyChunks >= chunkThreshold) {
+            return "修改区块约 " + dirtyChunks + " 个";
+        }
+        long dirtyBytes = (long) dirtyChunks * configManager.getPolicyChunkSizeKilobytes() * 1024L;
+        int megabytes = configManager.getPolicyDirtyMegabytes();
+        if (megabytes > 0 && dirtyBytes >= megabytes * 1024L * 1024L) {
+            return "修改数据约 " + BackupDelta.formatBytes(dirtyBytes);
+        }
+        if (quitPending && dirtyChunks > 0) {
+            return "最后一名玩家退出";
+        }
+        return null;
+    }
+
+    /**
+     * 记录在线玩家周围运行中的区块：这些区块中的方块和实体随时在变化。
+     */
+    private void recordActivity(long time) {
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            lastPlayerSeen = time;
+            Location location = player.getLocation();
+            World world = location.getWorld();
+            if (world == null || !intervals.containsKey(world.getName())) {
+                continue;
+            }
+            dirtyRegionTracker.markArea(world.getName(), location.getBlockX() >> 4, location.getBlockZ() >> 4,
+                    world.getSimulationDistance());
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.yauntyour.gitbackup;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * 用 WatchService 记录额外备份目录中自上次备份以来新建、修改和删除的路径，
+ * 下一次备份只需处理这些路径。事件溢出或无法监视某个目录时，下一次备份完整扫描。
+ */
+public class ChangeJournal {
+    private final Path baseDir;
+    private final List<String> roots;
+    private final Set<Path> ignored;
+    private final Logger logger;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private Set<String> changed = new HashSet<>();
+    // 监视开始之前的变化无从得知，第一次备份总是完整扫描
+    private boolean fullScan = true;
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * roots 为相对 baseDir 的目录或文件，ignored 中的目录（如备份仓库本身）不监视。
+     */
+    public ChangeJournal(Path baseDir, List<String> roots, Set<Path> ignored, Logger logger) {
+        this.baseDir = baseDir;
+        this.roots = roots;
+        this.ignored = ignored;
+        this.logger = logger;
+    }
+
+    public void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        for (String root : roots) {
+            Path path = baseDir.resolve(root);
+            if (Files.isDirectory(path)) {
+                register(path);
+            } else if (path.getParent() != null && Files.isDirectory(path.getParent())) {
+                // 单个文件通过监视所在目录得到事件
+                watch(path.getParent());
+            }
+        }
+
+        thread = new Thread(this::run, "GitBackup-Watch");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("正在监视 " + keys.size() + " 个额外备份目录的变化");
+    }
+
+    /**
+     * 取出自上次调用以来变化的路径（相对 baseDir，以 "/" 分隔）；需要完整扫描时返回 null。
+     */
+    public synchronized Set<String> drain() {
+        Set<String> result = fullScan ? null : changed;
+        changed = new HashSet<>();
+        fullScan = false;
+        return result;
+    }
+
+    /**
+     * 备份失败时调用：已经取出的变化丢失了，下一次完整扫描。
+     */
+    public synchronized void requireFullScan() {
+        fullScan = true;
+    }
+
+    public void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                logger.warning("关闭目录监视时出错: " + e.getMessage());
+            }
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = keys.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        logger.warning("目录监视事件溢出，下一次备份将完整扫描额外备份目录");
+                        requireFullScan();
+                        continue;
+                    }
+                    if (dir == null) {
+                        continue;
+                    }
+                    Path child = dir.resolve((Path) event.context());
+                    String relative = toRelative(child);
+                    if (relative == null) {
+                        continue;
+                    }
+                    record(relative);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+                        // 新目录中在注册之前创建的文件由扫描整个目录覆盖
+                        register(child);
+                    }
+                }
+                if (!key.reset()) {
+                    keys.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // 插件关闭
+        }
+    }
+
+    private synchronized void record(String relative) {
+        changed.add(relative);
+    }
+
+    /**
+     * 返回 path 相对 baseDir 的路径，不属于任何备份根目录时返回 null。
+     */
+    private String toRelative(Path path) {
+        Path relative = baseDir.relativize(path);
+        for (String root : roots) {
+            if (relative.startsWith(root)) {
+                return DirectCommitEngine.toTreePath(relative);
+            }
+        }
+        return null;
+    }
+
+    private void register(Path dir) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                    if (ignored.contains(subdir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    watch(subdir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // 通常是超出了系统的监视数量上限（Linux: fs.inotify.max_user_watches）
+            logger.warning("无法监视目录 " + dir + "，下一次备份将完整扫描: " + e.getMessage());
+            requireFullScan();
+        }
+    }
+
+    private void watch(Path dir) throws IOException {
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        keys.put(key, dir);
+    }
+}
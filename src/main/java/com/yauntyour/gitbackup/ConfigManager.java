@@ -56,15 +56,242 @@ public class ConfigManager {
         return config.getStringList("backup.worlds");
     }
 
+    /**
+     * 单个世界的自动备份间隔（分钟），没有单独设置时使用 backup.interval。
+     */
+    public int getWorldInterval(String worldName) {
+        return config.getInt("backup.world-intervals." + worldName, getBackupInterval());
+    }
+
+    public boolean isBackupPolicyEnabled() {
+        return config.getBoolean("backup.policy.enabled", true);
+    }
+
+    public int getPolicyDirtyChunks() {
+        return config.getInt("backup.policy.dirty-chunks", 4000);
+    }
+
+    public int getPolicyDirtyMegabytes() {
+        return config.getInt("backup.policy.dirty-mb", 0);
+    }
+
+    public int getPolicyChunkSizeKilobytes() {
+        return config.getInt("backup.policy.chunk-size-kb", 12);
+    }
+
+    public int getPolicyMinSpacing() {
+        return config.getInt("backup.policy.min-spacing", 10);
+    }
+
+    public boolean shouldSkipIdleBackups() {
+        return config.getBoolean("backup.policy.skip-idle", true);
+    }
+
+    public boolean shouldBackupOnLastQuit() {
+        return config.getBoolean("backup.policy.on-last-quit", false);
+    }
+
+    public boolean shouldBackupOnShutdown() {
+        return config.getBoolean("backup.policy.on-shutdown", false);
+    }
+
+    public boolean isDirtyTrackingEnabled() {
+        return config.getBoolean("backup.dirty-tracking.enabled", true);
+    }
+
+    public int getDirtyTrackingFullScanEvery() {
+        return config.getInt("backup.dirty-tracking.full-scan-every", 24);
+    }
+
+    public int getParallelWorlds() {
+        return config.getInt("backup.parallel-worlds", 0);
+    }
+
+    public List<String> getExtraPaths() {
+        return config.getStringList("backup.extra-paths");
+    }
+
     public List<String> getExcludes() {
         return config.getStringList("backup.excludes");
     }
 
     public int getMaxBackups() {
-        return config.getInt("backup.max-backups", 50);
+        return config.getInt("backup.max-backups", 0);
     }
 
     public boolean shouldSaveWorld() {
         return config.getBoolean("backup.save-world", true);
     }
-}
\ No newline at end of file
+
+    public String getBackupEngine() {
+        return config.getString("backup.engine", "direct");
+    }
+
+    public int getHashThreads() {
+        return config.getInt("backup.threads", 0);
+    }
+
+    public boolean isAdaptiveThrottleEnabled() {
+        return config.getBoolean("backup.throttle.adaptive", true);
+    }
+
+    public double getTickBudgetMillis() {
+        return config.getDouble("backup.throttle.tick-budget-ms", 55);
+    }
+
+    public double getPauseTickMillis() {
+        return config.getDouble("backup.throttle.pause-tick-ms", 100);
+    }
+
+    public int getMaxThrottlePause() {
+        return config.getInt("backup.throttle.max-pause", 30);
+    }
+
+    public int getThrottleMaxRate() {
+        return config.getInt("backup.throttle.max-rate", 0);
+    }
+
+    public int getThrottleMinRate() {
+        return config.getInt("backup.throttle.min-rate", 1024);
+    }
+
+    public int getThrottleMaxThreads() {
+        return config.getInt("backup.throttle.max-threads", 0);
+    }
+
+    public String getSnapshotMode() {
+        return config.getString("backup.snapshot.mode", "off");
+    }
+
+    public boolean isRegionCodecEnabled() {
+        return config.getBoolean("backup.codec.region", false);
+    }
+
+    public boolean isNbtCodecEnabled() {
+        return config.getBoolean("backup.codec.nbt", false);
+    }
+
+    public String getObjectMode() {
+        return config.getString("backup.objects.mode", "pack");
+    }
+
+    public int getObjectCompression() {
+        return config.getInt("backup.objects.compression", 1);
+    }
+
+    public String getMirrorMode() {
+        return config.getString("backup.mirror.mode", "incremental");
+    }
+
+    public boolean shouldMirrorCompareContent() {
+        return config.getBoolean("backup.mirror.compare-content", false);
+    }
+
+    public int getPackedGitLimit() {
+        return config.getInt("memory.packed-git-limit", 64);
+    }
+
+    public int getPackedGitWindowSize() {
+        return config.getInt("memory.window-size", 8);
+    }
+
+    public boolean isPackedGitMmap() {
+        return config.getBoolean("memory.mmap", false);
+    }
+
+    public int getDeltaBaseCache() {
+        return config.getInt("memory.delta-base-cache", 10);
+    }
+
+    public int getStreamFileThreshold() {
+        return config.getInt("memory.stream-file-threshold", 16);
+    }
+
+    public int getBigFileThreshold() {
+        return config.getInt("memory.big-file-threshold", 32);
+    }
+
+    public int getPackWindowMemory() {
+        return config.getInt("memory.window-memory", 64);
+    }
+
+    public int getDeltaCacheSize() {
+        return config.getInt("memory.delta-cache-size", 32);
+    }
+
+    public int getMaintenanceInterval() {
+        return config.getInt("maintenance.interval", 360);
+    }
+
+    public int getMaintenanceMaxPlayers() {
+        return config.getInt("maintenance.max-players", 2);
+    }
+
+    public long getMaintenanceLooseObjects() {
+        return config.getLong("maintenance.loose-objects", 5000);
+    }
+
+    public long getMaintenancePackFiles() {
+        return config.getLong("maintenance.pack-files", 20);
+    }
+
+    public int getMaintenancePruneExpireHours() {
+        return config.getInt("maintenance.prune-expire-hours", 24);
+    }
+
+    public int getMaintenanceCompression() {
+        return config.getInt("maintenance.compression", 6);
+    }
+
+    public boolean shouldRecompressObjects() {
+        return config.getBoolean("maintenance.recompress", false);
+    }
+
+    public boolean isRetentionEnabled() {
+        return config.getBoolean("retention.enabled", false);
+    }
+
+    public List<String> getRetentionRules() {
+        return config.getStringList("retention.rules");
+    }
+
+    public int getRetentionInterval() {
+        return config.getInt("retention.interval", 1440);
+    }
+
+    public boolean isMetricsJmxEnabled() {
+        return config.getBoolean("metrics.jmx", true);
+    }
+
+    public String getMetricsPrometheusFile() {
+        return config.getString("metrics.prometheus-file", "metrics.prom");
+    }
+
+    public int getPushEvery() {
+        return config.getInt("git.push.every", 1);
+    }
+
+    public int getPushRetryDelay() {
+        return config.getInt("git.push.retry-delay", 30);
+    }
+
+    public int getPushMaxRetryDelay() {
+        return config.getInt("git.push.max-retry-delay", 3600);
+    }
+
+    public int getPushBandwidthLimit() {
+        return config.getInt("git.push.bandwidth-limit", 0);
+    }
+
+    public int getPushTimeout() {
+        return config.getInt("git.push.timeout", 60);
+    }
+
+    public String getPushUsername() {
+        return config.getString("git.push.username", "");
+    }
+
+    public String getPushPassword() {
+        return config.getString("git.push.password", "");
+    }
+}
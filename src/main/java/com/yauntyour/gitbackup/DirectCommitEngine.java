@@ -0,0 +1,727 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * 直接提交引擎：不经过工作区，直接把世界目录中的文件写入对象库，
+ * 在内存中构建 DirCache/树并写出提交。
+ */
+public class DirectCommitEngine {
+    // 按区域坐标命名文件的目录，开启修改跟踪时只查看被修改过的区域
+    private static final Set<String> REGION_DIRS = Set.of("region", "entities", "poi");
+    private static final long NOT_REGION = Long.MIN_VALUE;
+    public static final long DEFAULT_STREAM_THRESHOLD = 16L * 1024 * 1024;
+
+    private final Repository repository;
+    private final Logger logger;
+    private final ExcludeFilter excludeFilter;
+    private final StatCache statCache;
+    private final ExecutorService hashExecutor;
+    private boolean compareFileKey = true;
+    private boolean regionCodec;
+    private boolean nbtCodec;
+    private long[] dirtyRegions;
+    private final Map<String, byte[]> topLevelFiles = new TreeMap<>();
+    private BackupMetrics metrics;
+    private IoThrottle throttle;
+    private long streamThreshold = DEFAULT_STREAM_THRESHOLD;
+    private SharedPackInserter packInserter;
+
+    public DirectCommitEngine(Repository repository, Logger logger, ExcludeFilter excludeFilter,
+                              StatCache statCache, ExecutorService hashExecutor) {
+        this.repository = repository;
+        this.logger = logger;
+        this.excludeFilter = excludeFilter;
+        this.statCache = statCache;
+        this.hashExecutor = hashExecutor;
+    }
+
+    /**
+     * 扫描快照目录时关闭，快照中的文件每次都是新的 inode。
+     */
+    public void setCompareFileKey(boolean compareFileKey) {
+        this.compareFileKey = compareFileKey;
+    }
+
+    /**
+     * 开启后区域文件按区块拆开存储，见 {@link RegionCodec}。
+     */
+    public void setRegionCodec(boolean regionCodec) {
+        this.regionCodec = regionCodec;
+    }
+
+    /**
+     * 开启后 gzip 压缩的 NBT 文件解压后存储，见 {@link NbtCodec}。
+     */
+    public void setNbtCodec(boolean nbtCodec) {
+        this.nbtCodec = nbtCodec;
+    }
+
+    /**
+     * 只扫描这些区域（已排序的 {@link DirtyRegionTracker#key} 数组）的区域文件，为 null 时完整扫描。
+     */
+    public void setDirtyRegions(long[] dirtyRegions) {
+        this.dirtyRegions = dirtyRegions;
+    }
+
+    /**
+     * 读取文件时使用的限速，null 表示不限速。
+     */
+    public void setThrottle(IoThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * 超过这个大小的文件只以流的方式写入，不会整个读入内存：.dat 文件不再解压存储，按普通文件处理。
+     * 区域文件总是逐个区块读取，不受影响。
+     */
+    public void setStreamThreshold(long streamThreshold) {
+        this.streamThreshold = streamThreshold;
+    }
+
+    /**
+     * 新对象写入这个共用的 pack（见 {@link SharedPackInserter}），null 表示写成松散对象。
+     * 扫描时不会写出 pack，{@link #commit} 在更新 HEAD 之前写出。
+     */
+    public void setPackInserter(SharedPackInserter packInserter) {
+        this.packInserter = packInserter;
+    }
+
+    public void setMetrics(BackupMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 遍历 root 并把每个文件写入对象库，返回树路径以 prefix 开头的索引条目和区域文件子树。
+     * 状态缓存命中的文件直接复用上次的对象，不会被打开；其余文件在线程池中并行计算哈希、压缩并写入。
+     */
+    public WorldSnapshot scan(Path root, String prefix) throws IOException {
+        List<DirCacheEntry> entries = new ArrayList<>();
+        Map<String, ObjectId> subtrees = new HashMap<>();
+        List<Future<Scanned>> pending = new ArrayList<>();
+        List<Path> pendingFiles = new ArrayList<>();
+        Path prefixPath = Path.of(prefix);
+        RegionCodec.Stats regionStats = new RegionCodec.Stats();
+        ObjectId headTree = resolveHeadTree();
+        AtomicInteger skipped = new AtomicInteger();
+        AtomicLong bytesRead = new AtomicLong();
+
+        SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path relative = root.relativize(dir);
+                if (!relative.toString().isEmpty() && excludeFilter.isExcluded(prefixPath.resolve(relative))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (dirtyRegions != null && REGION_DIRS.contains(dir.getFileName().toString())) {
+                    scanRegionDirectory(dir, prefix + "/" + toTreePath(relative));
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            /**
+             * 只查看被修改过的区域的文件，其余区域文件直接沿用 HEAD 中的对象，不读取文件属性；
+             * 其他文件和子目录照常扫描。
+             */
+            private void scanRegionDirectory(Path dir, String treeDir) throws IOException {
+                Map<String, ObjectId> previous = listHeadTree(headTree, treeDir);
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (Path file : files) {
+                        String fileName = file.getFileName().toString();
+                        String treePath = treeDir + "/" + fileName;
+                        long region = regionOf(fileName);
+                        if (region != NOT_REGION && Arrays.binarySearch(dirtyRegions, region) < 0
+                                && !excludeFilter.isExcluded(prefixPath.resolve(root.relativize(file)))) {
+                            ObjectId chunks = previous.get(fileName + RegionCodec.TREE_SUFFIX);
+                            ObjectId blob = previous.get(fileName);
+                            if (chunks != null) {
+                                subtrees.put(treePath + RegionCodec.TREE_SUFFIX, chunks);
+                            } else if (blob != null) {
+                                DirCacheEntry entry = new DirCacheEntry(treePath);
+                                entry.setFileMode(FileMode.REGULAR_FILE);
+                                entry.setObjectId(blob);
+                                entries.add(entry);
+                            }
+                            if (chunks != null || blob != null) {
+                                if (statCache != null) {
+                                    statCache.keep(prefix, treePath);
+                                }
+                                skipped.incrementAndGet();
+                                continue;
+                            }
+                        }
+
+                        try {
+                            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class,
+                                    LinkOption.NOFOLLOW_LINKS);
+                            if (attrs.isDirectory()) {
+                                // 区域目录下的子目录按普通目录递归扫描，否则会被当作删除提交
+                                Files.walkFileTree(file, this);
+                            } else {
+                                visitFile(file, attrs);
+                            }
+                        } catch (IOException e) {
+                            visitFileFailed(file, e);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path relative = root.relativize(file);
+                if (excludeFilter.isExcluded(prefixPath.resolve(relative))) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String treePath = prefix + "/" + toTreePath(relative);
+                String fileName = file.getFileName().toString();
+                byte kind = StatCache.KIND_BLOB;
+                if (regionCodec && RegionCodec.isRegionFile(fileName)) {
+                    kind = StatCache.KIND_REGION;
+                } else if (nbtCodec && NbtCodec.isNbtFile(fileName) && attrs.size() <= streamThreshold) {
+                    kind = StatCache.KIND_NBT;
+                }
+
+                if (statCache != null && reuseCached(treePath, attrs, kind, prefix, entries, subtrees)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                byte fileKind = kind;
+                bytesRead.addAndGet(attrs.size());
+                pending.add(hashExecutor.submit(() -> ingest(file, prefix, treePath, fileKind, headTree, regionStats)));
+                pendingFiles.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                carryForward(root, file, prefix, headTree, entries, subtrees, e);
+                return FileVisitResult.CONTINUE;
+            }
+        };
+
+        try {
+            Files.walkFileTree(root, visitor);
+        } catch (IOException | RuntimeException e) {
+            pending.forEach(f -> f.cancel(true));
+            throw e;
+        }
+
+        // 等待所有写入完成后再由调用线程单线程构建树
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                Scanned scanned = pending.get(i).get();
+                if (scanned.treeId != null) {
+                    subtrees.put(scanned.treePath, scanned.treeId);
+                } else {
+                    entries.add(scanned.entry);
+                }
+            } catch (ExecutionException e) {
+                IOException cause = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                try {
+                    carryForward(root, pendingFiles.get(i), prefix, headTree, entries, subtrees, cause);
+                } catch (IOException failed) {
+                    pending.forEach(f -> f.cancel(true));
+                    throw failed;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pending.forEach(f -> f.cancel(true));
+                throw new InterruptedIOException("扫描 '" + prefix + "' 时被中断");
+            }
+        }
+
+        // 每个世界的子树在各自的扫描线程中构建，提交时只需要组合顶层目录
+        ObjectId treeId = writeWorldTree(prefix, entries, subtrees);
+        if (metrics != null) {
+            metrics.addScan(entries.size() + subtrees.size() - skipped.get(), pending.size(), bytesRead.get(),
+                    pending.size() + regionStats.getReadChunks());
+        }
+
+        String message = "'" + prefix + "' 扫描完成: " + (entries.size() + subtrees.size()) + " 个文件, 重新写入 "
+                + pending.size() + " 个";
+        if (regionCodec) {
+            message += ", 区块读取 " + regionStats.getReadChunks() + " 个, 复用 " + regionStats.getReusedChunks() + " 个";
+        }
+        if (dirtyRegions != null) {
+            message += ", 跳过未修改的区域文件 " + skipped.get() + " 个";
+        }
+        if (treeId != null && treeId.equals(headWorldTree(headTree, prefix))) {
+            message += ", 没有变化";
+        }
+        logger.info(message);
+        return new WorldSnapshot(prefix, entries, subtrees, treeId);
+    }
+
+    /**
+     * 无法读取或写入的文件（或目录）沿用 HEAD 中的条目，否则新的树会把它记录为已删除，恢复时从世界中删掉。
+     * 已经不存在的文件按删除处理；仍然存在但 HEAD 中没有的文件无法沿用，抛出异常使这个世界的备份失败，下次重试。
+     */
+    private void carryForward(Path root, Path file, String prefix, ObjectId headTree, List<DirCacheEntry> entries,
+                              Map<String, ObjectId> subtrees, IOException cause) throws IOException {
+        if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Path relative = root.relativize(file);
+        if (headTree != null && !relative.toString().isEmpty()) {
+            String treePath = prefix + "/" + toTreePath(relative);
+            try (ObjectReader reader = repository.newObjectReader()) {
+                for (String path : new String[]{treePath, treePath + RegionCodec.TREE_SUFFIX,
+                        treePath + NbtCodec.BLOB_SUFFIX}) {
+                    try (TreeWalk treeWalk = TreeWalk.forPath(reader, path, headTree)) {
+                        if (treeWalk == null) {
+                            continue;
+                        }
+                        if (treeWalk.isSubtree()) {
+                            subtrees.put(path, treeWalk.getObjectId(0));
+                        } else {
+                            DirCacheEntry entry = new DirCacheEntry(path);
+                            entry.setFileMode(treeWalk.getFileMode(0));
+                            entry.setObjectId(treeWalk.getObjectId(0));
+                            entries.add(entry);
+                        }
+                    }
+                    if (statCache != null) {
+                        statCache.keep(prefix, treePath);
+                    }
+                    logger.warning("无法读取 " + file + "，沿用上一次备份中的内容: " + cause.getMessage());
+                    return;
+                }
+            }
+        }
+        throw new IOException("无法读取 " + file + "，上一次备份中也没有它: " + cause.getMessage(), cause);
+    }
+
+    private ObjectId writeWorldTree(String prefix, List<DirCacheEntry> entries, Map<String, ObjectId> subtrees)
+            throws IOException {
+        try (ObjectInserter inserter = newInserter();
+             ObjectReader reader = inserter.newReader()) {
+            DirCache dirCache = DirCache.newInCore();
+            DirCacheBuilder builder = dirCache.builder();
+            for (DirCacheEntry entry : entries) {
+                builder.add(entry);
+            }
+            for (Map.Entry<String, ObjectId> subtree : subtrees.entrySet()) {
+                builder.addTree(subtree.getKey().getBytes(StandardCharsets.UTF_8), DirCacheEntry.STAGE_0,
+                        reader, subtree.getValue());
+            }
+            builder.finish();
+
+            ObjectId rootId = dirCache.writeTree(inserter);
+            flushLoose(inserter);
+            try (TreeWalk treeWalk = TreeWalk.forPath(reader, prefix, rootId)) {
+                return treeWalk != null && treeWalk.isSubtree() ? treeWalk.getObjectId(0) : null;
+            }
+        }
+    }
+
+    /**
+     * HEAD 中目录 treeDir 的直接子条目（名称 -> ObjectId），目录不存在时为空。
+     */
+    private Map<String, ObjectId> listHeadTree(ObjectId headTree, String treeDir) throws IOException {
+        Map<String, ObjectId> children = new HashMap<>();
+        if (headTree == null) {
+            return children;
+        }
+        try (ObjectReader reader = repository.newObjectReader();
+             TreeWalk dirWalk = TreeWalk.forPath(reader, treeDir, headTree)) {
+            if (dirWalk == null || !dirWalk.isSubtree()) {
+                return children;
+            }
+            try (TreeWalk treeWalk = new TreeWalk(reader)) {
+                treeWalk.addTree(dirWalk.getObjectId(0));
+                while (treeWalk.next()) {
+                    children.put(treeWalk.getNameString(), treeWalk.getObjectId(0));
+                }
+            }
+        }
+        return children;
+    }
+
+    /**
+     * 区域文件 r.X.Z.mca 和外部区块文件 c.X.Z.mcc 所属的区域，其它文件返回 NOT_REGION。
+     */
+    static long regionOf(String fileName) {
+        String[] parts = fileName.split("\\.");
+        if (parts.length != 4) {
+            return NOT_REGION;
+        }
+        try {
+            int x = Integer.parseInt(parts[1]);
+            int z = Integer.parseInt(parts[2]);
+            if (parts[0].equals("r") && parts[3].equals("mca")) {
+                return DirtyRegionTracker.key(x, z);
+            }
+            if (parts[0].equals("c") && parts[3].equals("mcc")) {
+                return DirtyRegionTracker.key(x >> 5, z >> 5);
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        return NOT_REGION;
+    }
+
+    private ObjectId headWorldTree(ObjectId headTree, String prefix) throws IOException {
+        if (headTree == null) {
+            return null;
+        }
+        try (TreeWalk treeWalk = TreeWalk.forPath(repository, prefix, headTree)) {
+            return treeWalk != null && treeWalk.isSubtree() ? treeWalk.getObjectId(0) : null;
+        }
+    }
+
+    private boolean reuseCached(String treePath, BasicFileAttributes attrs, byte kind, String prefix,
+                                List<DirCacheEntry> entries, Map<String, ObjectId> subtrees) {
+        ObjectId cached = statCache.lookup(treePath, attrs, compareFileKey, kind);
+        // 不是 gzip 格式的 .dat 文件上次是按普通文件存储的
+        if (cached == null && kind == StatCache.KIND_NBT) {
+            kind = StatCache.KIND_BLOB;
+            cached = statCache.lookup(treePath, attrs, compareFileKey, kind);
+        }
+        if (cached == null) {
+            return false;
+        }
+
+        statCache.stage(prefix, treePath, attrs, compareFileKey, kind, cached);
+        if (kind == StatCache.KIND_REGION) {
+            subtrees.put(treePath + RegionCodec.TREE_SUFFIX, cached);
+        } else if (kind == StatCache.KIND_NBT) {
+            entries.add(newEntry(treePath + NbtCodec.BLOB_SUFFIX, 0, attrs, cached));
+        } else {
+            entries.add(newEntry(treePath, attrs.size(), attrs, cached));
+        }
+        return true;
+    }
+
+    private Scanned ingest(Path file, String prefix, String treePath, byte kind, ObjectId headTree,
+                           RegionCodec.Stats regionStats) throws IOException {
+        if (throttle == null) {
+            return ingestFile(file, prefix, treePath, kind, headTree, regionStats);
+        }
+        // 服务器卡顿时限制同时读取的线程数
+        throttle.enterWorker();
+        try {
+            return ingestFile(file, prefix, treePath, kind, headTree, regionStats);
+        } finally {
+            throttle.exitWorker();
+        }
+    }
+
+    private Scanned ingestFile(Path file, String prefix, String treePath, byte kind, ObjectId headTree,
+                               RegionCodec.Stats regionStats) throws IOException {
+        // 这里只读取之前提交的对象（上一次的区块树）
+        try (ObjectInserter inserter = newInserter();
+             ObjectReader reader = repository.newObjectReader()) {
+            if (kind == StatCache.KIND_NBT) {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                if (throttle != null) {
+                    throttle.acquire(attrs.size());
+                }
+                byte[] nbt = NbtCodec.decode(Files.readAllBytes(file), streamThreshold);
+                if (nbt != null) {
+                    ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, nbt);
+                    flushLoose(inserter);
+                    if (statCache != null) {
+                        statCache.stage(prefix, treePath, attrs, compareFileKey, StatCache.KIND_NBT, blobId);
+                    }
+                    return new Scanned(null, null,
+                            newEntry(treePath + NbtCodec.BLOB_SUFFIX, nbt.length, attrs, blobId));
+                }
+            }
+            if (kind == StatCache.KIND_REGION) {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                ObjectId previousTree = previousRegionTree(reader, headTree, treePath);
+                RegionCodec.Stats fileStats = new RegionCodec.Stats();
+                ObjectId treeId = RegionCodec.encode(file, inserter, reader, previousTree, fileStats, throttle);
+                regionStats.add(fileStats);
+                if (treeId != null) {
+                    flushLoose(inserter);
+                    if (fileStats.getDamagedChunks() > 0) {
+                        // 不写入状态缓存，下次备份重新读取这个文件
+                        logger.warning(treePath + " 中有 " + fileStats.getDamagedChunks()
+                                + " 个区块无法读取，沿用上一次备份的内容");
+                    } else if (statCache != null) {
+                        statCache.stage(prefix, treePath, attrs, compareFileKey, StatCache.KIND_REGION, treeId);
+                    }
+                    return new Scanned(treePath + RegionCodec.TREE_SUFFIX, treeId, null);
+                }
+            }
+            DirCacheEntry entry = insertFile(inserter, file, prefix, treePath);
+            flushLoose(inserter);
+            return new Scanned(treePath, null, entry);
+        }
+    }
+
+    private ObjectInserter newInserter() {
+        return packInserter != null ? packInserter : repository.newObjectInserter();
+    }
+
+    /**
+     * 松散对象在每个文件写完后写出；共用 pack 时所有对象在提交前一次写出。
+     */
+    private void flushLoose(ObjectInserter inserter) throws IOException {
+        if (inserter != packInserter) {
+            inserter.flush();
+        }
+    }
+
+    private ObjectId resolveHeadTree() throws IOException {
+        return repository.resolve(Constants.HEAD + "^{tree}");
+    }
+
+    /**
+     * 上一次备份中这个区域文件的区块树：优先使用状态缓存，缓存中没有时从 HEAD 的树中查找。
+     */
+    private ObjectId previousRegionTree(ObjectReader reader, ObjectId headTree, String treePath) throws IOException {
+        ObjectId previous = statCache != null ? statCache.previous(treePath, StatCache.KIND_REGION) : null;
+        if (previous != null || headTree == null) {
+            return previous;
+        }
+        try (TreeWalk treeWalk = TreeWalk.forPath(reader, treePath + RegionCodec.TREE_SUFFIX, headTree)) {
+            return treeWalk != null && treeWalk.isSubtree() ? treeWalk.getObjectId(0) : null;
+        }
+    }
+
+    private DirCacheEntry insertFile(ObjectInserter inserter, Path file, String prefix, String treePath)
+            throws IOException {
+        // 服务器可能正在写这个文件，长度变化时重新读取一次
+        IOException lastError = null;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            try (InputStream in = throttle != null
+                    ? throttle.wrap(Files.newInputStream(file)) : Files.newInputStream(file)) {
+                ObjectId blobId = inserter.insert(Constants.OBJ_BLOB, attrs.size(), in);
+                if (statCache != null) {
+                    statCache.stage(prefix, treePath, attrs, compareFileKey, StatCache.KIND_BLOB, blobId);
+                }
+                return newEntry(treePath, attrs.size(), attrs, blobId);
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    private static DirCacheEntry newEntry(String treePath, long length, BasicFileAttributes attrs, ObjectId blobId) {
+        DirCacheEntry entry = new DirCacheEntry(treePath);
+        entry.setFileMode(FileMode.REGULAR_FILE);
+        entry.setLength(length);
+        entry.setLastModified(attrs.lastModifiedTime().toInstant());
+        entry.setObjectId(blobId);
+        return entry;
+    }
+
+    /**
+     * 每次提交时写入的顶层文件（如 .gitignore），替换 HEAD 中的同名条目。
+     */
+    public void putTopLevelFile(String name, byte[] content) {
+        topLevelFiles.put(name, content);
+    }
+
+    /**
+     * 用 snapshots 中已构建好的世界子树替换 HEAD 中对应的顶层目录（其余顶层条目原样保留），
+     * 与 HEAD 做一次差异遍历得到变化，有变化时写出新提交（附带统计信息）并更新 HEAD。
+     */
+    public BackupDelta commit(List<WorldSnapshot> snapshots, String message, PersonIdent ident)
+            throws IOException {
+        Set<String> replaced = new HashSet<>();
+        for (WorldSnapshot snapshot : snapshots) {
+            replaced.add(snapshot.getWorldName());
+        }
+        replaced.addAll(topLevelFiles.keySet());
+
+        ObjectId headId = repository.resolve(Constants.HEAD);
+
+        try (ObjectInserter inserter = newInserter();
+             ObjectReader reader = inserter.newReader();
+             RevWalk revWalk = new RevWalk(reader)) {
+            RevCommit head = headId != null ? revWalk.parseCommit(headId) : null;
+
+            DirCache dirCache = DirCache.newInCore();
+            DirCacheBuilder builder = dirCache.builder();
+
+            // 保留本次没有重新扫描的顶层条目（如未加载的世界）
+            if (head != null) {
+                try (TreeWalk treeWalk = new TreeWalk(reader)) {
+                    treeWalk.addTree(head.getTree());
+                    treeWalk.setRecursive(false);
+                    while (treeWalk.next()) {
+                        String name = treeWalk.getPathString();
+                        if (replaced.contains(name)) {
+                            continue;
+                        }
+                        if (treeWalk.isSubtree()) {
+                            builder.addTree(name.getBytes(StandardCharsets.UTF_8), DirCacheEntry.STAGE_0,
+                                    reader, treeWalk.getObjectId(0));
+                        } else {
+                            DirCacheEntry entry = new DirCacheEntry(name);
+                            entry.setFileMode(treeWalk.getFileMode(0));
+                            entry.setObjectId(treeWalk.getObjectId(0));
+                            builder.add(entry);
+                        }
+                    }
+                }
+            }
+
+            for (WorldSnapshot snapshot : snapshots) {
+                if (snapshot.getTreeId() != null) {
+                    builder.addTree(snapshot.getWorldName().getBytes(StandardCharsets.UTF_8), DirCacheEntry.STAGE_0,
+                            reader, snapshot.getTreeId());
+                }
+            }
+            for (Map.Entry<String, byte[]> file : topLevelFiles.entrySet()) {
+                DirCacheEntry entry = new DirCacheEntry(file.getKey());
+                entry.setFileMode(FileMode.REGULAR_FILE);
+                entry.setLength(file.getValue().length);
+                entry.setObjectId(inserter.insert(Constants.OBJ_BLOB, file.getValue()));
+                builder.add(entry);
+            }
+            builder.finish();
+
+            ObjectId treeId = dirCache.writeTree(inserter);
+            BackupDelta delta = diff(reader, head, treeId, dirCache);
+            if (delta.isEmpty()) {
+                return delta;
+            }
+
+            CommitBuilder commitBuilder = new CommitBuilder();
+            commitBuilder.setTreeId(treeId);
+            if (head != null) {
+                commitBuilder.setParentId(head);
+            }
+            commitBuilder.setAuthor(ident);
+            commitBuilder.setCommitter(ident);
+            commitBuilder.setMessage(message + "\n\n" + delta.summary() + "\n");
+            ObjectId commitId = inserter.insert(commitBuilder);
+            // 对象（包括共用 pack 中本次备份的所有对象）必须在更新 HEAD 之前写出
+            inserter.flush();
+
+            RevCommit commit = revWalk.parseCommit(commitId);
+            updateHead(commit, headId);
+            delta.setCommit(commit);
+            return delta;
+        }
+    }
+
+    private BackupDelta diff(ObjectReader reader, RevCommit head, ObjectId treeId, DirCache dirCache)
+            throws IOException {
+        BackupDelta delta = new BackupDelta();
+        try (TreeWalk treeWalk = new TreeWalk(reader)) {
+            // ANY_DIFF 会跳过两边完全相同的子树，只有变化的部分会被展开
+            treeWalk.setRecursive(true);
+            treeWalk.setFilter(TreeFilter.ANY_DIFF);
+            if (head != null) {
+                treeWalk.addTree(head.getTree());
+            } else {
+                treeWalk.addTree(new EmptyTreeIterator());
+            }
+            treeWalk.addTree(treeId);
+
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                if (treeWalk.getRawMode(0) == 0) {
+                    delta.addAdded(path, entryLength(reader, dirCache, path, treeWalk.getObjectId(1)));
+                } else if (treeWalk.getRawMode(1) == 0) {
+                    delta.addRemoved(path, reader.getObjectSize(treeWalk.getObjectId(0), Constants.OBJ_BLOB));
+                } else {
+                    delta.addModified(path, entryLength(reader, dirCache, path, treeWalk.getObjectId(1)));
+                }
+            }
+        }
+        return delta;
+    }
+
+    private static long entryLength(ObjectReader reader, DirCache dirCache, String path, ObjectId blobId)
+            throws IOException {
+        DirCacheEntry entry = dirCache.getEntry(path);
+        if (entry != null && entry.getLength() > 0) {
+            return entry.getLength();
+        }
+        // 从子树展开的条目没有记录长度
+        return reader.getObjectSize(blobId, Constants.OBJ_BLOB);
+    }
+
+    private void updateHead(RevCommit commit, ObjectId oldHead) throws IOException {
+        RefUpdate refUpdate = repository.updateRef(Constants.HEAD);
+        refUpdate.setNewObjectId(commit);
+        refUpdate.setExpectedOldObjectId(oldHead != null ? oldHead : ObjectId.zeroId());
+        refUpdate.setRefLogMessage("commit: " + commit.getShortMessage(), false);
+
+        RefUpdate.Result result = refUpdate.update();
+        switch (result) {
+            case NEW:
+            case FAST_FORWARD:
+            case FORCED:
+                return;
+            default:
+                throw new IOException("更新 HEAD 失败: " + result);
+        }
+    }
+
+    private static class Scanned {
+        private final String treePath;
+        private final ObjectId treeId;
+        private final DirCacheEntry entry;
+
+        private Scanned(String treePath, ObjectId treeId, DirCacheEntry entry) {
+            this.treePath = treePath;
+            this.treeId = treeId;
+            this.entry = entry;
+        }
+    }
+
+    static String toTreePath(Path relative) {
+        StringBuilder sb = new StringBuilder();
+        for (Path name : relative) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(name.toString());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package com.yauntyour.gitbackup;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 记录每个世界自上次备份以来可能被写入过的区域（32x32 区块），备份时只需查看这些区域的文件。
+ * <p>
+ * 卸载的区块由 {@link com.yauntyour.gitbackup.listeners.DirtyRegionListener} 记录，
+ * 备份时仍加载着的区块在保存世界后整体记录。插件启动后、世界重新加载后，
+ * 以及每隔若干次备份，都会完整扫描一次作为兜底。
+ * <p>
+ * 同时按区块记录修改过的区块数，作为备份调度估算变化量的依据。
+ */
+public class DirtyRegionTracker {
+    private final Map<String, WorldState> worlds = new ConcurrentHashMap<>();
+    private final boolean enabled;
+    private final int fullScanEvery;
+
+    /**
+     * enabled 为 false 时总是完整扫描；fullScanEvery 为每隔多少次备份完整扫描一次，0 表示不定期完整扫描。
+     */
+    public DirtyRegionTracker(boolean enabled, int fullScanEvery) {
+        this.enabled = enabled;
+        this.fullScanEvery = fullScanEvery;
+    }
+
+    public static long key(int regionX, int regionZ) {
+        return ((long) regionX << 32) | (regionZ & 0xFFFFFFFFL);
+    }
+
+    public static int regionX(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int regionZ(long key) {
+        return (int) key;
+    }
+
+    public void markChunk(String worldName, int chunkX, int chunkZ) {
+        WorldState state = state(worldName);
+        synchronized (state) {
+            state.regions.add(key(chunkX >> 5, chunkZ >> 5));
+            state.chunks.add(key(chunkX, chunkZ));
+        }
+    }
+
+    /**
+     * 记录以 (centerX, centerZ) 为中心、半径 radius 个区块的范围，用于玩家周围正在运行的区块。
+     */
+    public void markArea(String worldName, int centerX, int centerZ, int radius) {
+        WorldState state = state(worldName);
+        synchronized (state) {
+            for (int x = centerX - radius; x <= centerX + radius; x++) {
+                for (int z = centerZ - radius; z <= centerZ + radius; z++) {
+                    state.regions.add(key(x >> 5, z >> 5));
+                    state.chunks.add(key(x, z));
+                }
+            }
+        }
+    }
+
+    /**
+     * 自上次备份以来记录到的修改区块数（估计值）。
+     */
+    public int getDirtyChunks(String worldName) {
+        WorldState state = state(worldName);
+        synchronized (state) {
+            return state.chunks.size();
+        }
+    }
+
+    /**
+     * 记录当前加载的全部区块，保存世界后在主线程调用：这些区块随时可能被写回磁盘。
+     */
+    public void markLoadedChunks(World world) {
+        WorldState state = state(world.getName());
+        Chunk[] chunks = world.getLoadedChunks();
+        synchronized (state) {
+            for (Chunk chunk : chunks) {
+                state.regions.add(key(chunk.getX() >> 5, chunk.getZ() >> 5));
+                state.chunks.add(key(chunk.getX(), chunk.getZ()));
+            }
+        }
+    }
+
+    /**
+     * 下一次备份完整扫描这个世界，例如世界被重新加载或备份失败时。
+     */
+    public void requireFullScan(String worldName) {
+        WorldState state = state(worldName);
+        synchronized (state) {
+            state.fullScan = true;
+        }
+    }
+
+    /**
+     * 取出并清空这个世界的修改记录，返回已排序的区域数组；需要完整扫描时返回 null。
+     */
+    public long[] drain(String worldName) {
+        WorldState state = state(worldName);
+        synchronized (state) {
+            boolean full = !enabled || state.fullScan
+                    || (fullScanEvery > 0 && ++state.scansSinceFull >= fullScanEvery);
+            long[] regions = full ? null : state.regions.toSortedArray();
+            state.regions.clear();
+            state.chunks.clear();
+            if (full) {
+                state.fullScan = false;
+                state.scansSinceFull = 0;
+            }
+            return regions;
+        }
+    }
+
+    private WorldState state(String worldName) {
+        return worlds.computeIfAbsent(worldName, name -> new WorldState());
+    }
+
+    private static class WorldState {
+        private final LongHashSet regions = new LongHashSet();
+        private final LongHashSet chunks = new LongHashSet();
+        // 插件启动前世界的变化无从得知，第一次备份总是完整扫描
+        private boolean fullScan = true;
+        private int scansSinceFull;
+    }
+}
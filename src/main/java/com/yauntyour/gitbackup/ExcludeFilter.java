@@ -0,0 +1,56 @@
+package com.yauntyour.gitbackup;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按 backup.excludes 中的 glob 模式匹配备份仓库内的相对路径（如 "world/session.lock"）。
+ * 不含 "/" 的模式与 .gitignore 一样按文件名匹配任意层级。
+ */
+public class ExcludeFilter {
+    private final List<PathMatcher> pathMatchers = new ArrayList<>();
+    private final List<PathMatcher> nameMatchers = new ArrayList<>();
+
+    public ExcludeFilter(List<String> patterns) {
+        FileSystem fs = FileSystems.getDefault();
+        for (String pattern : patterns) {
+            if (pattern == null || pattern.isBlank()) {
+                continue;
+            }
+            String trimmed = pattern.trim();
+            if (trimmed.startsWith("/")) {
+                trimmed = trimmed.substring(1);
+            }
+            if (trimmed.contains("/")) {
+                pathMatchers.add(fs.getPathMatcher("glob:" + trimmed));
+            } else {
+                nameMatchers.add(fs.getPathMatcher("glob:" + trimmed));
+            }
+        }
+    }
+
+    public boolean isExcluded(Path relativePath) {
+        for (PathMatcher matcher : pathMatchers) {
+            if (matcher.matches(relativePath)) {
+                return true;
+            }
+        }
+        Path fileName = relativePath.getFileName();
+        if (fileName != null) {
+            for (PathMatcher matcher : nameMatchers) {
+                if (matcher.matches(fileName)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public boolean isExcluded(String relativePath) {
+        return isExcluded(Path.of(relativePath));
+    }
+}
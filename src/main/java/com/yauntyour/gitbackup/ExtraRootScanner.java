@@ -0,0 +1,285 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * 把服务器目录中的额外路径（插件配置、server.properties 等）备份到仓库的 {@link #PREFIX} 目录下，
+ * 树中的路径与服务器目录中的相对路径相同。
+ * <p>
+ * 有变化记录（见 {@link ChangeJournal}）时以 HEAD 中的树为基础，只重新读取记录中的路径，
+ * 没有涉及的子树原样沿用；否则完整扫描所有根路径。
+ */
+public class ExtraRootScanner {
+    public static final String PREFIX = ".extra";
+
+    private final Repository repository;
+    private final Logger logger;
+    private final ExcludeFilter excludeFilter;
+    private final StatCache statCache;
+    private final Path baseDir;
+    private final List<String> roots;
+    private final Set<Path> ignored;
+    private BackupMetrics metrics;
+    private IoThrottle throttle;
+    private SharedPackInserter packInserter;
+
+    public ExtraRootScanner(Repository repository, Logger logger, ExcludeFilter excludeFilter, StatCache statCache,
+                            Path baseDir, List<String> roots, Set<Path> ignored) {
+        this.repository = repository;
+        this.logger = logger;
+        this.excludeFilter = excludeFilter;
+        this.statCache = statCache;
+        this.baseDir = baseDir;
+        this.roots = roots;
+        this.ignored = ignored;
+    }
+
+    public void setThrottle(IoThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * 新对象写入共用的 pack，null 表示写成松散对象。见 {@link DirectCommitEngine#setPackInserter}。
+     */
+    public void setPackInserter(SharedPackInserter packInserter) {
+        this.packInserter = packInserter;
+    }
+
+    public void setMetrics(BackupMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * changed 为自上次备份以来变化的相对路径，为 null 时完整扫描。
+     */
+    public WorldSnapshot scan(Set<String> changed) throws IOException {
+        DirCache dirCache = DirCache.newInCore();
+        DirCacheBuilder builder = dirCache.builder();
+        long[] written = new long[3];
+
+        try (ObjectInserter inserter = packInserter != null ? packInserter : repository.newObjectInserter();
+             ObjectReader reader = inserter.newReader()) {
+            ObjectId previous = previousTree(reader);
+            Set<String> paths = changed != null ? collapse(changed) : null;
+            boolean full = paths == null || previous == null;
+            if (full) {
+                paths = collapse(roots);
+            } else {
+                keepUnchanged(reader, previous, paths, builder);
+                // 变化的文件不再使用旧的缓存条目
+                if (statCache != null) {
+                    statCache.forget(PREFIX, paths);
+                }
+            }
+
+            // 完整扫描时整个前缀的缓存条目会被替换，增量扫描时不使用缓存
+            boolean useCache = statCache != null && full;
+            for (String path : paths) {
+                if (isBackedUp(path)) {
+                    addPath(baseDir.resolve(path), inserter, builder, useCache, written);
+                }
+            }
+            builder.finish();
+
+            ObjectId treeId = null;
+            if (dirCache.getEntryCount() > 0) {
+                treeId = dirCache.writeTree(inserter);
+            }
+            if (inserter != packInserter) {
+                inserter.flush();
+            }
+
+            if (metrics != null) {
+                metrics.addScan(written[2], written[0], written[1], written[0]);
+            }
+            logger.info("额外备份路径扫描完成: " + dirCache.getEntryCount() + " 个文件, "
+                    + (full ? "完整扫描, " : "变化的路径 " + paths.size() + " 个, ")
+                    + "重新写入 " + written[0] + " 个");
+            return new WorldSnapshot(PREFIX, null, null, treeId);
+        }
+    }
+
+    /**
+     * 去掉上级目录也在集合中的路径，上级目录会被整体重新扫描。
+     */
+    private static Set<String> collapse(Iterable<String> paths) {
+        Set<String> all = new HashSet<>();
+        paths.forEach(all::add);
+        Set<String> result = new HashSet<>();
+        for (String path : all) {
+            boolean covered = false;
+            for (int slash = path.indexOf('/'); slash >= 0 && !covered; slash = path.indexOf('/', slash + 1)) {
+                covered = all.contains(path.substring(0, slash));
+            }
+            if (!covered) {
+                result.add(path);
+            }
+        }
+        return result;
+    }
+
+    private ObjectId previousTree(ObjectReader reader) throws IOException {
+        ObjectId headTree = repository.resolve(Constants.HEAD + "^{tree}");
+        if (headTree == null) {
+            return null;
+        }
+        try (TreeWalk treeWalk = TreeWalk.forPath(reader, PREFIX, headTree)) {
+            return treeWalk != null && treeWalk.isSubtree() ? treeWalk.getObjectId(0) : null;
+        }
+    }
+
+    /**
+     * 沿用 HEAD 中没有变化的条目：只进入包含变化路径的目录，其余子树整体沿用。
+     */
+    private void keepUnchanged(ObjectReader reader, ObjectId previous, Set<String> changed, DirCacheBuilder builder)
+            throws IOException {
+        Set<String> ancestors = new HashSet<>();
+        for (String path : changed) {
+            for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', slash + 1)) {
+                ancestors.add(path.substring(0, slash));
+            }
+        }
+
+        try (TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(previous);
+            treeWalk.setRecursive(false);
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                if (changed.contains(path) || !isConfiguredRoot(path)) {
+                    continue;
+                }
+                if (treeWalk.isSubtree()) {
+                    if (ancestors.contains(path)) {
+                        treeWalk.enterSubtree();
+                    } else {
+                        builder.addTree(path.getBytes(StandardCharsets.UTF_8), DirCacheEntry.STAGE_0,
+                                reader, treeWalk.getObjectId(0));
+                    }
+                } else {
+                    DirCacheEntry entry = new DirCacheEntry(path);
+                    entry.setFileMode(treeWalk.getFileMode(0));
+                    entry.setObjectId(treeWalk.getObjectId(0));
+                    builder.add(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * written: [重新写入的文件数, 重新写入的字节数, 查看的文件数]
+     */
+    private void addPath(Path start, ObjectInserter inserter, DirCacheBuilder builder, boolean useCache,
+                         long[] written) throws IOException {
+        if (!Files.exists(start, LinkOption.NOFOLLOW_LINKS)) {
+            // 已删除
+            return;
+        }
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (ignored.contains(dir) || excludeFilter.isExcluded(treePath(dir))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String path = relativePath(file);
+                if (!attrs.isRegularFile() || excludeFilter.isExcluded(treePath(file))) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                ObjectId blobId = useCache
+                        ? statCache.lookup(PREFIX + "/" + path, attrs, true, StatCache.KIND_BLOB) : null;
+                if (blobId == null) {
+                    try (InputStream in = throttle != null
+                            ? throttle.wrap(Files.newInputStream(file)) : Files.newInputStream(file)) {
+                        blobId = inserter.insert(Constants.OBJ_BLOB, attrs.size(), in);
+                    } catch (NoSuchFileException e) {
+                        // 扫描期间被删除
+                        return FileVisitResult.CONTINUE;
+                    }
+                    written[0]++;
+                    written[1] += attrs.size();
+                }
+                written[2]++;
+                if (useCache) {
+                    statCache.stage(PREFIX, PREFIX + "/" + path, attrs, true, StatCache.KIND_BLOB, blobId);
+                }
+
+                DirCacheEntry entry = new DirCacheEntry(path);
+                entry.setFileMode(FileMode.REGULAR_FILE);
+                entry.setLength(attrs.size());
+                entry.setLastModified(attrs.lastModifiedTime().toInstant());
+                entry.setObjectId(blobId);
+                builder.add(entry);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                if (!(e instanceof NoSuchFileException)) {
+                    logger.warning("无法读取文件 " + file + ": " + e.getMessage());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * 变化记录中的路径是否仍在配置的根路径下（配置可能在两次备份之间被修改）。
+     */
+    private boolean isBackedUp(String path) {
+        for (String root : roots) {
+            if (path.equals(root) || path.startsWith(root + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * HEAD 中的顶层目录是否仍属于某个根路径，或是某个根路径的上级目录。
+     */
+    private boolean isConfiguredRoot(String path) {
+        for (String root : roots) {
+            if (root.equals(path) || root.startsWith(path + "/") || path.startsWith(root + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String relativePath(Path file) {
+        return DirectCommitEngine.toTreePath(baseDir.relativize(file));
+    }
+
+    private Path treePath(Path file) {
+        return Path.of(PREFIX).resolve(baseDir.relativize(file));
+    }
+}
@@ -1,15 +1,31 @@
 package com.yauntyour.gitbackup;
 
 import com.yauntyour.gitbackup.commands.CommandManager;
+import com.yauntyour.gitbackup.listeners.DirtyRegionListener;
+import com.yauntyour.gitbackup.listeners.PlayerActivityListener;
+import org.bukkit.Bukkit;
 import org.bukkit.plugin.java.JavaPlugin;
 
+import java.io.IOException;
+
 public class GitBackupPlugin extends JavaPlugin {
     private static GitBackupPlugin instance;
     private ConfigManager configManager;
     private GitManager gitManager;
+    private BackupPipeline backupPipeline;
     private BackupScheduler backupScheduler;
+    private MaintenanceScheduler maintenanceScheduler;
+    private DirtyRegionTracker dirtyRegionTracker;
+    private TickMonitor tickMonitor;
     private CommandManager commandManager;
 
+    @Override
+    public void onLoad() {
+        // 世界加载之前换入暂存的完整恢复，再写入暂存的区域和区块恢复
+        RestoreEngine.applyPending(GitManager.getRestoreRoot(), Bukkit.getWorldContainer().toPath(), getLogger());
+        PartialRestore.applyPending(GitManager.getPendingRoot(), Bukkit.getWorldContainer().toPath(), null, getLogger());
+    }
+
     @Override
     public void onEnable() {
         instance = this;
@@ -20,6 +36,19 @@ public class GitBackupPlugin extends JavaPlugin {
 
         // 初始化Git管理器
         gitManager = new GitManager(this);
+        configureMetrics();
+
+        // 初始化读写限速和 tick 监测
+        tickMonitor = new TickMonitor(this, gitManager.getThrottle());
+        configureThrottle();
+
+        // 初始化区域修改跟踪
+        dirtyRegionTracker = new DirtyRegionTracker(configManager.isDirtyTrackingEnabled(),
+                configManager.getDirtyTrackingFullScanEvery());
+        Bukkit.getPluginManager().registerEvents(new DirtyRegionListener(dirtyRegionTracker), this);
+
+        // 初始化备份流水线
+        backupPipeline = new BackupPipeline(this);
 
         // 初始化命令管理器
         commandManager = new CommandManager(this);
@@ -28,8 +57,27 @@ public class GitBackupPlugin extends JavaPlugin {
         // 初始化备份调度器
         backupScheduler = new BackupScheduler(this);
         backupScheduler.startScheduledBackups();
+        Bukkit.getPluginManager().registerEvents(new PlayerActivityListener(backupScheduler), this);
+
+        // 初始化仓库维护调度器
+        maintenanceScheduler = new MaintenanceScheduler(this);
+        maintenanceScheduler.startScheduledMaintenance();
+
         getLogger().info("GitBackup插件已启用!");
         gitManager.initRepo();
+
+        // 在异步线程预读最近的备份历史，供命令补全使用
+        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+            BackupHistory history = gitManager.getHistory();
+            if (history == null) {
+                return;
+            }
+            try {
+                history.getPage(0, 100);
+            } catch (IOException e) {
+                getLogger().warning("读取备份历史时出错: " + e.getMessage());
+            }
+        });
     }
 
     @Override
@@ -38,13 +86,55 @@ public class GitBackupPlugin extends JavaPlugin {
             backupScheduler.stopScheduledBackups();
         }
 
+        if (maintenanceScheduler != null) {
+            maintenanceScheduler.stopScheduledMaintenance();
+        }
+
+        if (tickMonitor != null) {
+            tickMonitor.stop();
+        }
+
+        if (backupPipeline != null) {
+            backupPipeline.shutdown();
+            // 插件禁用后不能再安排任务，关闭前的备份在当前线程同步完成
+            if (backupScheduler != null && backupScheduler.shouldBackupOnShutdown()) {
+                backupPipeline.backupOnShutdown("关闭服务器前备份 - " + System.currentTimeMillis());
+            }
+        }
+
         if (gitManager != null) {
+            gitManager.getMetrics().unregisterMBean();
             gitManager.close();
         }
 
         getLogger().info("GitBackup插件已禁用!");
     }
 
+    /**
+     * 按配置注册 JMX 指标和设置 Prometheus 文件，重新加载配置后再次调用。
+     */
+    public void configureMetrics() {
+        BackupMetrics metrics = gitManager.getMetrics();
+        metrics.unregisterMBean();
+        if (configManager.isMetricsJmxEnabled()) {
+            metrics.registerMBean(getLogger());
+        }
+        String file = configManager.getMetricsPrometheusFile();
+        metrics.setPrometheusFile(file.isEmpty() ? null : getDataFolder().toPath().resolve(file));
+    }
+
+    /**
+     * 按配置设置读写限速，开启自适应限速时启动 tick 监测。重新加载配置后再次调用。
+     */
+    public void configureThrottle() {
+        gitManager.configureThrottle();
+        if (configManager.isAdaptiveThrottleEnabled()) {
+            tickMonitor.start();
+        } else {
+            tickMonitor.stop();
+        }
+    }
+
     public static GitBackupPlugin getInstance() {
         return instance;
     }
@@ -57,7 +147,19 @@ public class GitBackupPlugin extends JavaPlugin {
         return gitManager;
     }
 
+    public BackupPipeline getBackupPipeline() {
+        return backupPipeline;
+    }
+
     public BackupScheduler getBackupScheduler() {
         return backupScheduler;
     }
+
+    public DirtyRegionTracker getDirtyRegionTracker() {
+        return dirtyRegionTracker;
+    }
+
+    public MaintenanceScheduler getMaintenanceScheduler() {
+        return maintenanceScheduler;
+    }
 }
\ No newline at end of file
@@ -1,12 +1,17 @@
 package com.yauntyour.gitbackup;
 
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.Status;
 import org.eclipse.jgit.api.errors.GitAPIException;
-import org.eclipse.jgit.api.errors.InvalidRemoteException;
-import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
 
 
 import org.bukkit.Bukkit;
@@ -15,16 +20,47 @@ import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
 
 public class GitManager {
+    // 插件自己的状态记录在仓库配置的 [gitbackup] 段中
+    private static final String CONFIG_SECTION = "gitbackup";
+    private static final String CONFIG_KEY_LAST_MAINTENANCE = "lastMaintenance";
+    private static final String CONFIG_KEY_LAST_RETENTION = "lastRetention";
+
     private final JavaPlugin plugin;
     private final ConfigManager configManager;
     private Git git;
     private Repository repository;
+    private StatCache statCache;
+    private PushQueue pushQueue;
+    private ChangeJournal changeJournal;
+    private final BackupMetrics metrics = new BackupMetrics();
+    private final IoThrottle throttle = new IoThrottle();
+    private BackupHistory history;
+    private volatile boolean restorePending;
+    private boolean retentionDisabledLogged;
+    // 恢复是否已经写入过世界文件，只在 repositoryLock 内访问
+    private boolean restoreWritten;
+    private ExecutorService hashExecutor;
+    // 本次备份共用的 pack 写入器，见 backupInserter
+    private SharedPackInserter packInserter;
+    // 提交、清理、恢复等仓库写操作互斥；推送的网络传输不持锁，只在记录推送状态时持锁
+    private final ReentrantLock repositoryLock = new ReentrantLock();
 
     public GitManager(JavaPlugin plugin) {
         this.plugin = plugin;
@@ -44,6 +80,11 @@ public class GitManager {
             if (isGitRepository(repoDir)) {
                 plugin.getLogger().info("发现现有的Git仓库");
                 openRepo();
+                warnStaleWorktree(repoDir);
+                configureMemory();
+                loadStatCache();
+                startPushQueue();
+                startChangeJournal();
                 return true;
             }
 
@@ -55,9 +96,15 @@ public class GitManager {
                     .call();
 
             repository = git.getRepository();
-
-            // 创建.gitignore文件
-            createGitIgnore();
+            configureMemory();
+            loadStatCache();
+            startPushQueue();
+            startChangeJournal();
+
+            // 创建.gitignore文件（direct 引擎在每次提交时写入）
+            if (!isDirectEngine()) {
+                createGitIgnore();
+            }
 
             // 初始提交
             commitChanges("初始提交");
@@ -71,6 +118,25 @@ public class GitManager {
         }
     }
 
+    /**
+     * 从 worktree 引擎切换到 direct 引擎后，仓库目录中的世界副本不再使用也不会被更新，提示可以删除。
+     */
+    private void warnStaleWorktree(File repoDir) {
+        if (!isDirectEngine()) {
+            return;
+        }
+        List<String> stale = new ArrayList<>();
+        for (String worldName : configManager.getWorlds()) {
+            if (new File(repoDir, worldName).isDirectory()) {
+                stale.add(worldName);
+            }
+        }
+        if (!stale.isEmpty()) {
+            plugin.getLogger().warning("仓库目录 " + repoDir + " 中还有 worktree 引擎留下的世界副本: "
+                    + String.join(", ", stale) + "。direct 引擎不再使用它们，确认备份正常后可以删除这些目录和 .git/index 以释放磁盘空间");
+        }
+    }
+
     private boolean isGitRepository(File dir) {
         File gitDir = new File(dir, ".git");
         return gitDir.exists() && gitDir.isDirectory();
@@ -87,6 +153,168 @@ public class GitManager {
         }
     }
 
+    private void loadStatCache() throws IOException {
+        if (repository == null) {
+            return;
+        }
+        File cacheFile = new File(repository.getDirectory(), "gitbackup/statcache");
+        statCache = StatCache.load(cacheFile, repository.resolve(Constants.HEAD), plugin.getLogger());
+    }
+
+    private void startPushQueue() {
+        if (pushQueue == null) {
+            pushQueue = new PushQueue(git, repositoryLock, configManager, plugin.getLogger(), metrics, throttle);
+        }
+    }
+
+    private void startChangeJournal() {
+        List<String> roots = getExtraRoots();
+        if (changeJournal != null || roots.isEmpty()) {
+            return;
+        }
+        if (!isDirectEngine()) {
+            plugin.getLogger().warning("额外备份路径只在 direct 引擎下生效");
+            return;
+        }
+        ChangeJournal journal = new ChangeJournal(getServerDir(), roots, getIgnoredDirs(), plugin.getLogger());
+        try {
+            journal.start();
+            changeJournal = journal;
+        } catch (IOException e) {
+            // 没有变化记录时每次完整扫描
+            journal.close();
+            plugin.getLogger().warning("无法监视额外备份路径，每次备份将完整扫描: " + e.getMessage());
+        }
+    }
+
+    /**
+     * backup.extra-paths 中相对服务器目录的路径，统一为 "/" 分隔，忽略绝对路径和包含 ".." 的路径。
+     */
+    private List<String> getExtraRoots() {
+        List<String> roots = new ArrayList<>();
+        for (String path : configManager.getExtraPaths()) {
+            String root = path == null ? "" : path.trim().replace('\\', '/');
+            while (root.startsWith("./")) {
+                root = root.substring(2);
+            }
+            while (root.endsWith("/")) {
+                root = root.substring(0, root.length() - 1);
+            }
+            if (root.isEmpty() || root.startsWith("/") || root.contains(":") || Path.of(root).normalize().startsWith("..")) {
+                plugin.getLogger().warning("忽略无效的额外备份路径: " + path);
+                continue;
+            }
+            roots.add(DirectCommitEngine.toTreePath(Path.of(root).normalize()));
+        }
+        return roots;
+    }
+
+    public boolean hasExtraRoots() {
+        return isDirectEngine() && !getExtraRoots().isEmpty();
+    }
+
+    /**
+     * 准备额外备份路径的快照：有变化记录时只处理记录中的路径。不访问 Bukkit API，可以在异步线程调用。
+     */
+    public WorldSnapshot prepareExtra() throws IOException {
+        Set<String> changed = changeJournal != null ? changeJournal.drain() : null;
+        ExtraRootScanner scanner = new ExtraRootScanner(repository, plugin.getLogger(),
+                new ExcludeFilter(configManager.getExcludes()), statCache, getServerDir(), getExtraRoots(),
+                getIgnoredDirs());
+        scanner.setMetrics(metrics);
+        scanner.setThrottle(throttle);
+        scanner.setPackInserter(backupInserter());
+        return scanner.scan(changed);
+    }
+
+    private static Path getServerDir() {
+        return Path.of("").toAbsolutePath().normalize();
+    }
+
+    private Set<Path> getIgnoredDirs() {
+        // 备份仓库位于额外备份路径中时不备份它自己
+        return Set.of(new File(configManager.getRepositoryPath()).toPath().toAbsolutePath().normalize());
+    }
+
+    public BackupMetrics getMetrics() {
+        return metrics;
+    }
+
+    public IoThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * 按配置设置读写限速的上限，重新加载配置后再次调用。
+     */
+    public void configureThrottle() {
+        throttle.configure(configManager.getThrottleMaxRate() * 1024L, configManager.getThrottleMinRate() * 1024L,
+                getHashThreadCount(), configManager.getTickBudgetMillis(), configManager.getPauseTickMillis(),
+                configManager.getMaxThrottlePause());
+    }
+
+    /**
+     * 按 memory 配置设置 JGit 的 pack 窗口缓存和增量基础缓存（整个插件共用，JGit 已重定位到插件包内，
+     * 不影响其它插件），并把大文件阈值和打包内存上限写入仓库配置，gc 和推送打包时读取。
+     * 仓库打开后调用，重新加载配置后再次调用。
+     */
+    public void configureMemory() {
+        int windowSize = Integer.highestOneBit(Math.max(4, configManager.getPackedGitWindowSize())) * 1024;
+        WindowCacheConfig cacheConfig = new WindowCacheConfig();
+        cacheConfig.setPackedGitWindowSize(windowSize);
+        cacheConfig.setPackedGitLimit(Math.max(windowSize, megabytes(configManager.getPackedGitLimit())));
+        cacheConfig.setPackedGitMMAP(configManager.isPackedGitMmap());
+        cacheConfig.setDeltaBaseCacheLimit(toInt(megabytes(configManager.getDeltaBaseCache())));
+        cacheConfig.setStreamFileThreshold(toInt(getStreamFileThreshold()));
+        cacheConfig.install();
+
+        if (repository == null) {
+            return;
+        }
+        StoredConfig config = repository.getConfig();
+        config.setLong(ConfigConstants.CONFIG_CORE_SECTION, null, ConfigConstants.CONFIG_KEY_BIGFILE_THRESHOLD,
+                megabytes(configManager.getBigFileThreshold()));
+        config.setLong(ConfigConstants.CONFIG_PACK_SECTION, null, ConfigConstants.CONFIG_KEY_WINDOW_MEMORY,
+                megabytes(configManager.getPackWindowMemory()));
+        config.setLong(ConfigConstants.CONFIG_PACK_SECTION, null, ConfigConstants.CONFIG_KEY_DELTA_CACHE_SIZE,
+                megabytes(configManager.getDeltaCacheSize()));
+        try {
+            config.save();
+        } catch (IOException e) {
+            plugin.getLogger().warning("写入仓库内存配置时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 超过这个大小的文件和对象以流的方式读写，不整个读入内存。
+     */
+    public long getStreamFileThreshold() {
+        return megabytes(Math.max(1, configManager.getStreamFileThreshold()));
+    }
+
+    private static long megabytes(int value) {
+        return Math.max(0, value) * 1024L * 1024L;
+    }
+
+    private static int toInt(long value) {
+        return (int) Math.min(Integer.MAX_VALUE, value);
+    }
+
+    /**
+     * 仓库尚未初始化时返回 null。
+     */
+    public PushQueue getPushQueue() {
+        return pushQueue;
+    }
+
+    private byte[] gitIgnoreContent() {
+        StringBuilder content = new StringBuilder();
+        for (String exclude : configManager.getExcludes()) {
+            content.append(exclude).append('\n');
+        }
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
     private void createGitIgnore() throws IOException {
         File gitIgnore = new File(configManager.getRepositoryPath(), ".gitignore");
         List<String> excludes = configManager.getExcludes();
@@ -101,81 +329,276 @@ public class GitManager {
         }
     }
 
+    public boolean isReady() {
+        return git != null;
+    }
+
+    /**
+     * 同步执行一次完整备份（保存世界、准备、提交、推送），必须在主线程调用。
+     * 日常备份请使用 {@link BackupPipeline}，它把耗时的阶段放到异步线程。
+     */
     public boolean commitChanges(String message) {
         if (git == null) {
             plugin.getLogger().warning("Git仓库未初始化!");
             return false;
         }
+        if (restorePending) {
+            plugin.getLogger().warning("已恢复备份，重启服务器前不会创建新的备份");
+            return false;
+        }
 
         try {
-            // 保存世界（如果需要）
-            if (configManager.shouldSaveWorld()) {
-                for (World world : Bukkit.getWorlds()) {
+            List<WorldSnapshot> snapshots = new ArrayList<>();
+            for (String worldName : configManager.getWorlds()) {
+                World world = Bukkit.getWorld(worldName);
+                if (world == null) {
+                    plugin.getLogger().warning("世界 '" + worldName + "' 不存在，跳过备份");
+                    continue;
+                }
+                // 保存世界（如果需要）
+                if (configManager.shouldSaveWorld()) {
                     world.save();
                 }
+                snapshots.add(prepareWorld(worldName, world.getWorldFolder(), false, null));
+            }
+            if (hasExtraRoots()) {
+                snapshots.add(prepareExtra());
             }
 
-            // 复制世界到备份目录
-            copyWorldsToBackup();
-
-            // 添加所有文件到Git
-            git.add().addFilepattern(".").call();
-
-            // 检查是否有更改
-            if (git.status().call().getChanged().isEmpty() &&
-                    git.status().call().getAdded().isEmpty() &&
-                    git.status().call().getModified().isEmpty() &&
-                    git.status().call().getRemoved().isEmpty()) {
-                plugin.getLogger().info("没有检测到更改，跳过提交");
+            BackupDelta delta = commitSnapshots(snapshots, message);
+            if (delta.isEmpty()) {
                 return false;
             }
 
-            // 提交更改
-            git.commit()
-                    .setMessage(message)
-                    .setAuthor(configManager.getUserName(), configManager.getUserEmail())
-                    .call();
-
-            plugin.getLogger().info("已创建备份提交: " + message);
-
-            // 推送到远程（如果配置了）
-            pushToRemote();
-
-            // 清理旧备份（如果需要）
-            cleanupOldBackups();
-
+            pushAndCleanup();
             return true;
         } catch (Exception e) {
+            discardSnapshots();
             plugin.getLogger().severe("提交更改时出错: " + e.getMessage());
             e.printStackTrace();
             return false;
         }
     }
 
-    private void copyWorldsToBackup() throws IOException {
-        File backupDir = new File(configManager.getRepositoryPath());
+    /**
+     * 准备单个世界：direct 引擎扫描世界目录并写入对象；worktree 引擎把世界同步到工作区。
+     * staged 表示 worldFolder 是快照暂存目录而不是世界本身。
+     * dirtyRegions 为自上次备份以来修改过的区域（见 {@link DirtyRegionTracker}），为 null 时完整扫描。
+     * 不访问 Bukkit API，可以在异步线程调用。
+     */
+    public WorldSnapshot prepareWorld(String worldName, File worldFolder, boolean staged, long[] dirtyRegions)
+            throws IOException {
+        if (isDirectEngine()) {
+            DirectCommitEngine engine = new DirectCommitEngine(repository, plugin.getLogger(),
+                    new ExcludeFilter(configManager.getExcludes()), statCache, getHashExecutor());
+            engine.setCompareFileKey(!staged);
+            engine.setRegionCodec(configManager.isRegionCodecEnabled());
+            engine.setNbtCodec(configManager.isNbtCodecEnabled());
+            engine.setDirtyRegions(dirtyRegions);
+            engine.setMetrics(metrics);
+            engine.setThrottle(throttle);
+            engine.setStreamThreshold(getStreamFileThreshold());
+            engine.setPackInserter(backupInserter());
+            return engine.scan(worldFolder.toPath(), worldName);
+        }
 
-        for (String worldName : configManager.getWorlds()) {
-            World world = Bukkit.getWorld(worldName);
-            if (world == null) {
-                plugin.getLogger().warning("世界 '" + worldName + "' 不存在，跳过备份");
-                continue;
+        copyWorldToBackup(worldName, worldFolder);
+        return new WorldSnapshot(worldName, null, null, null);
+    }
+
+    /**
+     * 用准备好的世界创建提交。没有变化时返回空的 BackupDelta，不会创建提交。
+     */
+    public BackupDelta commitSnapshots(List<WorldSnapshot> snapshots, String message)
+            throws IOException, GitAPIException {
+        repositoryLock.lock();
+        long start = System.nanoTime();
+        try {
+            // 一次差异遍历得到所有变化
+            BackupDelta delta;
+            if (isDirectEngine()) {
+                // 直接从世界目录构建提交，不使用工作区
+                delta = commitSnapshotsDirectly(snapshots, message);
+            } else {
+                delta = commitWorktree(message);
             }
 
-            File worldDir = world.getWorldFolder();
-            File destDir = new File(backupDir, worldName);
+            if (delta.isEmpty()) {
+                plugin.getLogger().info("没有检测到更改，跳过提交");
+            } else {
+                plugin.getLogger().info("已创建备份提交: " + message + " (" + delta.summary() + ")");
+                getHistory().recordCommit(delta.getCommit());
+            }
+            return delta;
+        } finally {
+            metrics.record(BackupMetrics.Phase.COMMIT, System.nanoTime() - start);
+            repositoryLock.unlock();
+        }
+    }
+
+    /**
+     * 准备或提交失败时丢弃本次扫描暂存的状态缓存。
+     */
+    public void discardSnapshots() {
+        releaseBackupInserter();
+        if (statCache != null) {
+            statCache.discard();
+        }
+        if (changeJournal != null) {
+            changeJournal.requireFullScan();
+        }
+    }
 
-            // 如果目标目录存在，删除它
-            if (destDir.exists()) {
-                deleteDirectory(destDir);
+    public void pushAndCleanup() {
+        repositoryLock.lock();
+        try {
+            // 先按保留策略清理旧备份，推送的就是清理后的历史
+            long start = System.nanoTime();
+            applyRetention();
+            metrics.record(BackupMetrics.Phase.RETENTION, System.nanoTime() - start);
+
+            // 交给推送线程（如果配置了远程仓库），不等待推送完成
+            if (pushQueue != null) {
+                pushQueue.backupCommitted();
             }
+        } finally {
+            repositoryLock.unlock();
+        }
+    }
 
-            // 复制世界目录
-            copyDirectory(worldDir.toPath(), destDir.toPath());
+    private boolean isDirectEngine() {
+        return "direct".equalsIgnoreCase(configManager.getBackupEngine());
+    }
+
+    private BackupDelta commitWorktree(String message) throws IOException, GitAPIException {
+        return commitWorktree(git, new File(configManager.getRepositoryPath()), message,
+                new PersonIdent(configManager.getUserName(), configManager.getUserEmail()));
+    }
+
+    /**
+     * 工作区模式的 add/status/commit 一轮。不依赖 Bukkit，基准测试也直接调用。
+     */
+    static BackupDelta commitWorktree(Git git, File backupDir, String message, PersonIdent author)
+            throws GitAPIException {
+        // 添加所有文件到Git，并暂存已删除的文件
+        git.add().addFilepattern(".").call();
+        git.add().addFilepattern(".").setUpdate(true).call();
+
+        // 只调用一次 status，避免重复遍历整个工作区和索引
+        Status status = git.status().call();
+        BackupDelta delta = new BackupDelta();
+        for (String path : status.getAdded()) {
+            delta.addAdded(path, new File(backupDir, path).length());
+        }
+        for (String path : status.getChanged()) {
+            delta.addModified(path, new File(backupDir, path).length());
+        }
+        for (String path : status.getRemoved()) {
+            delta.addRemoved(path, 0);
         }
+        if (delta.isEmpty()) {
+            return delta;
+        }
+
+        // 提交更改
+        RevCommit commit = git.commit()
+                .setMessage(message + "\n\n" + delta.summary() + "\n")
+                .setAuthor(author)
+                .call();
+        delta.setCommit(commit);
+        return delta;
     }
 
-    private void copyDirectory(Path source, Path target) throws IOException {
+    private BackupDelta commitSnapshotsDirectly(List<WorldSnapshot> snapshots, String message) throws IOException {
+        DirectCommitEngine engine = new DirectCommitEngine(repository, plugin.getLogger(),
+                new ExcludeFilter(configManager.getExcludes()), statCache, getHashExecutor());
+        engine.setPackInserter(backupInserter());
+        // direct 引擎不读取索引，.gitignore 按当前的排除规则直接写入提交
+        engine.putTopLevelFile(".gitignore", gitIgnoreContent());
+
+        try {
+            PersonIdent ident = new PersonIdent(configManager.getUserName(), configManager.getUserEmail());
+            BackupDelta delta = engine.commit(snapshots, message, ident);
+            // 没有变化时树与 HEAD 相同，缓存中的 blob 同样都可以从 HEAD 访问到
+            statCache.commit(repository.resolve(Constants.HEAD));
+            return delta;
+        } catch (IOException | RuntimeException e) {
+            statCache.discard();
+            throw e;
+        } finally {
+            // 没有变化时本次写入的对象都已在对象库中，未写出的 pack 直接丢弃
+            releaseBackupInserter();
+        }
+    }
+
+    /**
+     * 本次备份共用的 pack 写入器：扫描和提交写入的新对象都进入同一个 pack，提交时一次写出。
+     * 第一次调用时创建，提交或丢弃后释放；配置为松散对象时返回 null。
+     */
+    private synchronized SharedPackInserter backupInserter() {
+        if (packInserter == null && isDirectEngine() && "pack".equalsIgnoreCase(configManager.getObjectMode())) {
+            packInserter = SharedPackInserter.open(repository, configManager.getObjectCompression(),
+                    getStreamFileThreshold());
+        }
+        return packInserter;
+    }
+
+    private synchronized void releaseBackupInserter() {
+        if (packInserter != null) {
+            packInserter.release();
+            packInserter = null;
+        }
+    }
+
+    private int getHashThreadCount() {
+        int threads = configManager.getHashThreads();
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        // 限速配置的线程上限同样约束线程池大小
+        int maxThreads = configManager.getThrottleMaxThreads();
+        return maxThreads > 0 ? Math.min(threads, maxThreads) : threads;
+    }
+
+    private synchronized ExecutorService getHashExecutor() {
+        if (hashExecutor == null) {
+            int threads = getHashThreadCount();
+            AtomicInteger counter = new AtomicInteger();
+            hashExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "GitBackup-Hash-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return hashExecutor;
+    }
+
+    private void copyWorldToBackup(String worldName, File worldDir) throws IOException {
+        File destDir = new File(configManager.getRepositoryPath(), worldName);
+
+        if ("incremental".equalsIgnoreCase(configManager.getMirrorMode())) {
+            // 增量镜像：只复制有变化的文件，删除已不存在的文件
+            WorldMirror mirror = new WorldMirror(plugin.getLogger(),
+                    new ExcludeFilter(configManager.getExcludes()), configManager.shouldMirrorCompareContent());
+            mirror.setThrottle(throttle);
+            WorldMirror.Result result = mirror.sync(worldDir.toPath(), destDir.toPath(), worldName);
+            plugin.getLogger().info("世界 '" + worldName + "' 同步完成: " + result);
+            return;
+        }
+
+        // 如果目标目录存在，删除它
+        if (destDir.exists()) {
+            deleteDirectory(destDir);
+        }
+
+        // 复制世界目录
+        copyDirectory(worldDir.toPath(), destDir.toPath(), plugin.getLogger(), throttle);
+    }
+
+    /**
+     * 完整复制目录。throttle 为 null 时不限速。
+     */
+    static void copyDirectory(Path source, Path target, Logger logger, IoThrottle throttle) throws IOException {
         Files.walk(source)
                 .forEach(sourcePath -> {
                     try {
@@ -184,16 +607,18 @@ public class GitManager {
                             if (!Files.exists(targetPath)) {
                                 Files.createDirectory(targetPath);
                             }
+                        } else if (throttle != null) {
+                            throttle.copy(sourcePath, targetPath);
                         } else {
                             Files.copy(sourcePath, targetPath);
                         }
                     } catch (IOException e) {
-                        plugin.getLogger().severe("复制文件时出错: " + e.getMessage());
+                        logger.severe("复制文件时出错: " + e.getMessage());
                     }
                 });
     }
 
-    private void deleteDirectory(File directory) throws IOException {
+    static void deleteDirectory(File directory) throws IOException {
         if (directory.isDirectory()) {
             for (File file : directory.listFiles()) {
                 deleteDirectory(file);
@@ -202,73 +627,138 @@ public class GitManager {
         Files.delete(directory.toPath());
     }
 
-    private void pushToRemote() {
-        String remoteUrl = configManager.getRemoteUrl();
-        if (remoteUrl == null || remoteUrl.isEmpty()) {
+    /**
+     * 按保留策略合并过期的备份，然后运行 gc 回收它们占用的空间。
+     * 重写历史和 gc 都比较耗时，两次之间至少间隔 retention.interval 分钟。
+     */
+    private void applyRetention() {
+        RetentionPolicy policy = RetentionPolicy.parse(configManager.getRetentionRules(), plugin.getLogger());
+        int maxBackups = configManager.getMaxBackups();
+        if (policy.isEmpty() && maxBackups <= 0) {
+            return; // 无限制
+        }
+        // 重写历史会永久删除备份，必须明确开启
+        if (!configManager.isRetentionEnabled()) {
+            if (!retentionDisabledLogged) {
+                retentionDisabledLogged = true;
+                plugin.getLogger().info("配置了保留策略或 max-backups，但 retention.enabled 未开启，不会删除旧备份");
+            }
             return;
         }
 
-        try {
-            git.push()
-                    .setRemote("origin")
-                    .setCredentialsProvider(new UsernamePasswordCredentialsProvider("", ""))
-                    .call();
-            plugin.getLogger().info("已推送到远程仓库");
-        } catch (InvalidRemoteException e) {
-            plugin.getLogger().warning("无效的远程仓库URL: " + e.getMessage());
-        } catch (TransportException e) {
-            plugin.getLogger().warning("推送时传输错误: " + e.getMessage());
-        } catch (GitAPIException e) {
-            plugin.getLogger().severe("推送时出错: " + e.getMessage());
-            e.printStackTrace();
+        StoredConfig config = repository.getConfig();
+        long now = System.currentTimeMillis();
+        long last = config.getLong(CONFIG_SECTION, null, CONFIG_KEY_LAST_RETENTION, 0);
+        if (now - last < configManager.getRetentionInterval() * 60_000L) {
+            return;
         }
-    }
-
-    private void cleanupOldBackups() {
-        int maxBackups = configManager.getMaxBackups();
-        if (maxBackups <= 0) {
-            return; // 无限制
+        if (last == 0) {
+            plugin.getLogger().warning("首次应用保留策略: 将重写备份历史，过期的备份会被合并删除，"
+                    + "gc 之后在本地和远程仓库中都无法找回");
         }
 
         try {
-            Iterable<RevCommit> commits = git.log().call();
-            List<RevCommit> commitList = new ArrayList<>();
-            commits.forEach(commitList::add);
-
-            if (commitList.size() > maxBackups) {
-                // 找到需要删除的旧提交
-                List<RevCommit> toRemove = commitList.subList(maxBackups, commitList.size());
-                for (RevCommit commit : toRemove) {
-                    // 注意：这不会从历史中完全删除提交，只是删除标签/引用
-                    git.tagDelete().setTags(commit.getName()).call();
+            RetentionEngine engine = new RetentionEngine(repository, plugin.getLogger(), policy);
+            int dropped = engine.apply(now, maxBackups);
+            if (dropped > 0) {
+                // 下一次推送需要以上次推送的提交为预期值强制更新远程分支
+                if (pushQueue != null) {
+                    pushQueue.historyRewritten();
                 }
+                // HEAD 的树没有变化，缓存的 blob 仍然可达
+                if (statCache != null) {
+                    statCache.updateHead(repository.resolve(Constants.HEAD));
+                }
+                collectGarbage(pruneExpire());
             }
+            config.setLong(CONFIG_SECTION, null, CONFIG_KEY_LAST_RETENTION, now);
+            config.save();
         } catch (Exception e) {
             plugin.getLogger().warning("清理旧备份时出错: " + e.getMessage());
+            e.printStackTrace();
         }
     }
 
-    public List<String> getBackupHistory() {
-        List<String> history = new ArrayList<>();
+    /**
+     * 不可达对象保留到这个时间之后才清理，保护正在写入的备份对象。
+     */
+    public Instant pruneExpire() {
+        return Instant.now().minus(Math.max(1, configManager.getMaintenancePruneExpireHours()), ChronoUnit.HOURS);
+    }
 
-        if (git == null) {
-            plugin.getLogger().warning("Git仓库未初始化!");
-            return history;
+    /**
+     * 运行 gc：打包松散对象、写入 pack 位图和 commit-graph，并清理早于 expire 的不可达对象。
+     * 仓库正在被备份或恢复使用时返回 null。
+     */
+    public Properties runMaintenance(Instant expire) {
+        if (git == null || !repositoryLock.tryLock()) {
+            return null;
         }
-
+        long start = System.nanoTime();
         try {
-            Iterable<RevCommit> commits = git.log().call();
-            for (RevCommit commit : commits) {
-                String entry = commit.getName() + " - " +
-                        commit.getAuthorIdent().getWhen() + " - " +
-                        commit.getShortMessage();
-                history.add(entry);
-            }
+            collectGarbage(expire);
+            return git.gc().getStatistics();
         } catch (Exception e) {
-            plugin.getLogger().severe("获取备份历史时出错: " + e.getMessage());
+            plugin.getLogger().severe("仓库维护时出错: " + e.getMessage());
             e.printStackTrace();
+            return null;
+        } finally {
+            metrics.recordSingle(BackupMetrics.Phase.MAINTENANCE, System.nanoTime() - start);
+            repositoryLock.unlock();
+            metrics.export(plugin.getLogger());
         }
+    }
+
+    private void collectGarbage(Instant expire) throws IOException, GitAPIException {
+        StoredConfig config = repository.getConfig();
+        config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, ConfigConstants.CONFIG_COMMIT_GRAPH, true);
+        config.setBoolean(ConfigConstants.CONFIG_GC_SECTION, null,
+                ConfigConstants.CONFIG_KEY_WRITE_COMMIT_GRAPH, true);
+        config.setBoolean(ConfigConstants.CONFIG_PACK_SECTION, null,
+                ConfigConstants.CONFIG_KEY_BUILD_BITMAPS, true);
+        // 备份时以较快的级别写入，gc 重新打包时使用更高的压缩级别
+        config.setInt(ConfigConstants.CONFIG_PACK_SECTION, null, ConfigConstants.CONFIG_KEY_COMPRESSION,
+                Math.max(0, Math.min(9, configManager.getMaintenanceCompression())));
+        config.setBoolean(ConfigConstants.CONFIG_PACK_SECTION, null, ConfigConstants.CONFIG_KEY_REUSE_OBJECTS,
+                !configManager.shouldRecompressObjects());
+
+        git.gc()
+                .setExpire(Date.from(expire))
+                .call();
+
+        config.setLong(CONFIG_SECTION, null, CONFIG_KEY_LAST_MAINTENANCE, System.currentTimeMillis());
+        config.save();
+    }
 
+    public Properties getRepositoryStatistics() {
+        if (git == null) {
+            return null;
+        }
+        try {
+            return git.gc().getStatistics();
+        } catch (GitAPIException e) {
+            plugin.getLogger().warning("读取仓库统计时出错: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 上一次仓库维护的时间（毫秒），从未维护过时返回 0。
+     */
+    public long getLastMaintenanceTime() {
+        if (repository == null) {
+            return 0;
+        }
+        return repository.getConfig().getLong(CONFIG_SECTION, null, CONFIG_KEY_LAST_MAINTENANCE, 0);
+    }
+
+    /**
+     * 仓库尚未初始化时返回 null。
+     */
+    public synchronized BackupHistory getHistory() {
+        if (history == null && repository != null) {
+            history = new BackupHistory(repository);
+        }
         return history;
     }
 
@@ -278,60 +768,177 @@ public class GitManager {
             return false;
         }
 
+        // 不排在正在进行的备份后面等待，直接提示稍后再试
+        if (!repositoryLock.tryLock()) {
+            plugin.getLogger().warning("备份正在进行中，请稍后再恢复");
+            return false;
+        }
+        boolean written = false;
         try {
-            // 检出特定提交
-            git.checkout()
-                    .setName(commitHash)
-                    .call();
-
-            plugin.getLogger().info("已检出提交: " + commitHash);
-
-            // 复制世界回服务器目录
-            copyBackupToWorlds();
-
-            plugin.getLogger().info("备份恢复完成，请重启服务器使更改生效");
+            if (!((GitBackupPlugin) plugin).getBackupPipeline().suspendForRestore()) {
+                plugin.getLogger().warning("备份正在进行中，请稍后再恢复");
+                return false;
+            }
+            // 直接从对象库差异恢复，不检出工作区，HEAD 保持不变
+            ObjectId commitId = repository.resolve(commitHash + "^{commit}");
+            if (commitId == null) {
+                plugin.getLogger().warning("找不到提交: " + commitHash);
+                return false;
+            }
+            List<String> staged;
+            try (RevWalk revWalk = new RevWalk(repository)) {
+                staged = stageCommitToWorlds(revWalk.parseCommit(commitId));
+            }
+            if (staged.isEmpty()) {
+                plugin.getLogger().warning("没有可以恢复的世界");
+                return false;
+            }
+            // 从这里开始下次启动时会换入恢复的世界
+            written = true;
+            RestoreEngine.markReady(getRestoreRoot(), staged);
+            plugin.getLogger().info("备份恢复已暂存，将在下次服务器启动、世界加载前替换世界目录，请重启服务器");
             return true;
         } catch (Exception e) {
             plugin.getLogger().severe("恢复备份时出错: " + e.getMessage());
             e.printStackTrace();
             return false;
+        } finally {
+            endRestore(written);
+            repositoryLock.unlock();
         }
     }
 
-    private void copyBackupToWorlds() throws IOException {
-        File backupDir = new File(configManager.getRepositoryPath());
+    /**
+     * 对比当前世界暂存提交中的每个世界，返回暂存的世界名。任何一个世界出错时丢弃所有暂存。
+     */
+    private List<String> stageCommitToWorlds(RevCommit commit) throws IOException {
+        RestoreEngine engine = new RestoreEngine(repository, plugin.getLogger(), statCache, getHashExecutor());
+        engine.setStreamThreshold(getStreamFileThreshold());
 
-        for (String worldName : configManager.getWorlds()) {
-            File sourceDir = new File(backupDir, worldName);
-            if (!sourceDir.exists()) {
-                plugin.getLogger().warning("备份中找不到世界 '" + worldName + "'，跳过恢复");
-                continue;
+        List<String> staged = new ArrayList<>();
+        try {
+            for (String worldName : configManager.getWorlds()) {
+                if (!engine.hasTree(commit, worldName)) {
+                    plugin.getLogger().warning("备份中找不到世界 '" + worldName + "'，跳过恢复");
+                    continue;
+                }
+
+                World world = Bukkit.getWorld(worldName);
+                if (world == null) {
+                    plugin.getLogger().warning("服务器中不存在世界 '" + worldName + "'，跳过恢复");
+                    continue;
+                }
+
+                RestoreEngine.Result result = engine.stageWorld(commit, worldName, world.getWorldFolder().toPath(),
+                        getRestoreRoot());
+                staged.add(worldName);
+                plugin.getLogger().info("世界 '" + worldName + "' 已暂存恢复: " + result);
             }
+        } catch (IOException | RuntimeException e) {
+            RestoreEngine.discardStaging(getRestoreRoot());
+            throw e;
+        }
+        return staged;
+    }
 
-            World world = Bukkit.getWorld(worldName);
-            if (world == null) {
-                plugin.getLogger().warning("服务器中不存在世界 '" + worldName + "'，跳过恢复");
-                continue;
+    /**
+     * 从提交中部分恢复一个世界（区域、区块范围或玩家）。只读取需要的对象，不检出、不改变 HEAD。
+     * 失败时返回 -1。
+     */
+    public int restorePartial(String commitHash, String worldName, PartialRestore.Action action) {
+        if (git == null) {
+            plugin.getLogger().warning("Git仓库未初始化!");
+            return -1;
+        }
+        if (!repositoryLock.tryLock()) {
+            plugin.getLogger().warning("备份正在进行中，请稍后再恢复");
+            return -1;
+        }
+        boolean written = false;
+        try {
+            if (!((GitBackupPlugin) plugin).getBackupPipeline().suspendForRestore()) {
+                plugin.getLogger().warning("备份正在进行中，请稍后再恢复");
+                return -1;
             }
+            ObjectId commitId = repository.resolve(commitHash + "^{commit}");
+            if (commitId == null) {
+                plugin.getLogger().warning("找不到提交: " + commitHash);
+                return -1;
+            }
+            PartialRestore restore = new PartialRestore(repository, getPendingRoot());
+            try (RevWalk revWalk = new RevWalk(repository)) {
+                RevCommit commit = revWalk.parseCommit(commitId);
+                if (!restore.hasWorld(commit, worldName)) {
+                    plugin.getLogger().warning("备份中找不到世界 '" + worldName + "'");
+                    return -1;
+                }
+                written = true;
+                int count = action.run(restore, commit);
+                written = count > 0;
+                return count;
+            }
+        } catch (Exception e) {
+            plugin.getLogger().severe("部分恢复时出错: " + e.getMessage());
+            e.printStackTrace();
+            return -1;
+        } finally {
+            endRestore(written);
+            repositoryLock.unlock();
+        }
+    }
 
-            File worldDir = world.getWorldFolder();
+    /**
+     * 恢复结束时调用（持有 repositoryLock）。只要写入过文件就保持恢复待重启的状态，即使恢复失败也是如此，
+     * 否则备份流程会保存世界、覆盖已恢复的文件；没有写入任何文件时恢复正常备份。
+     */
+    private void endRestore(boolean written) {
+        restoreWritten |= written;
+        if (!restoreWritten) {
+            restorePending = false;
+        }
+    }
 
-            // 备份当前世界
-            File backupWorldDir = new File(worldDir.getParent(), worldName + ".backup");
-            if (backupWorldDir.exists()) {
-                deleteDirectory(backupWorldDir);
-            }
-            copyDirectory(worldDir.toPath(), backupWorldDir.toPath());
+    /**
+     * 区域和区块恢复的暂存目录，在世界加载前应用。
+     */
+    public static Path getPendingRoot() {
+        return Bukkit.getWorldContainer().toPath().resolve(".gitbackup-pending");
+    }
 
-            // 删除当前世界
-            deleteDirectory(worldDir);
+    /**
+     * 完整恢复的暂存目录，在世界加载前换入。
+     */
+    public static Path getRestoreRoot() {
+        return Bukkit.getWorldContainer().toPath().resolve(".gitbackup-restore");
+    }
 
-            // 复制备份的世界
-            copyDirectory(sourceDir.toPath(), worldDir.toPath());
-        }
+    /**
+     * 恢复开始后到服务器重启前不应再创建备份：保存世界会把内存中的旧区块写回已恢复的世界。
+     */
+    public boolean isRestorePending() {
+        return restorePending;
+    }
+
+    /**
+     * 由 {@link BackupPipeline#suspendForRestore()} 在没有备份进行时调用。
+     */
+    void setRestorePending() {
+        restorePending = true;
     }
 
     public void close() {
+        if (pushQueue != null) {
+            pushQueue.shutdown();
+        }
+        if (changeJournal != null) {
+            changeJournal.close();
+        }
+        synchronized (this) {
+            if (hashExecutor != null) {
+                hashExecutor.shutdownNow();
+                hashExecutor = null;
+            }
+        }
         if (repository != null) {
             repository.close();
         }
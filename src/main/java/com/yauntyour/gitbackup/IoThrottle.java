@@ -0,0 +1,235 @@
+package com.yauntyour.gitbackup;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 备份读写的自适应限速。复制、哈希和推送都从这里取令牌，TickMonitor 每秒用最近的 tick 间隔调用
+ * {@link #adjust(double)}：超出预算时降低速率并减少同时工作的线程，严重卡顿时暂停，服务器恢复后逐步提速。
+ * 配置的速率上限和线程上限在任何情况下都不会被超过。
+ */
+public class IoThrottle {
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private final RateLimiter rateLimiter = new RateLimiter(0);
+    private final LongAdder transferred = new LongAdder();
+
+    // 配置，由 configure 设置
+    private volatile long maxBytesPerSecond;
+    private volatile long minBytesPerSecond;
+    private volatile int maxWorkers = Integer.MAX_VALUE;
+    private volatile double budgetMillis;
+    private volatile double pauseMillis;
+    private volatile long maxPauseNanos;
+
+    // 以下字段由 this 保护
+    private long currentRate;
+    private boolean paused;
+    private long pausedSince;
+    // 暂停已超时，服务器恢复之前不再暂停
+    private boolean pauseExpired;
+    private int workerLimit = Integer.MAX_VALUE;
+    private int activeWorkers;
+    private long lastAdjust = System.nanoTime();
+
+    private volatile double lastTickMillis;
+
+    /**
+     * @param maxBytesPerSecond 速率上限，0 表示不限
+     * @param minBytesPerSecond 降速时的下限
+     * @param maxWorkers        同时读写的线程上限
+     * @param budgetMillis      tick 间隔超过这个值时降速
+     * @param pauseMillis       tick 间隔超过这个值时暂停，0 表示不暂停
+     * @param maxPauseSeconds   连续暂停的最长时间，超过后以最低速率继续，避免备份永远无法完成
+     */
+    public synchronized void configure(long maxBytesPerSecond, long minBytesPerSecond, int maxWorkers,
+                                       double budgetMillis, double pauseMillis, int maxPauseSeconds) {
+        this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+        this.minBytesPerSecond = Math.max(1, minBytesPerSecond);
+        if (this.maxBytesPerSecond > 0) {
+            this.minBytesPerSecond = Math.min(this.minBytesPerSecond, this.maxBytesPerSecond);
+        }
+        this.maxWorkers = Math.max(1, maxWorkers);
+        this.budgetMillis = budgetMillis;
+        this.pauseMillis = pauseMillis;
+        this.maxPauseNanos = TimeUnit.SECONDS.toNanos(Math.max(0, maxPauseSeconds));
+        reset();
+    }
+
+    /**
+     * 回到只受上限约束的状态。TickMonitor 停止时调用。
+     */
+    public synchronized void reset() {
+        currentRate = maxBytesPerSecond;
+        paused = false;
+        pauseExpired = false;
+        workerLimit = maxWorkers;
+        rateLimiter.setRate(currentRate);
+        lastTickMillis = 0;
+        notifyAll();
+    }
+
+    /**
+     * 根据最近的平均 tick 间隔调整速率和线程数。
+     */
+    public synchronized void adjust(double tickMillis) {
+        long now = System.nanoTime();
+        double seconds = Math.max(0.001, (now - lastAdjust) / 1e9);
+        lastAdjust = now;
+        long observed = (long) (transferred.sumThenReset() / seconds);
+        lastTickMillis = tickMillis;
+
+        if (pauseMillis > 0 && tickMillis >= pauseMillis) {
+            if (!paused && !pauseExpired) {
+                paused = true;
+                pausedSince = now;
+            }
+            workerLimit = 1;
+            currentRate = minBytesPerSecond;
+        } else if (tickMillis > budgetMillis) {
+            // 当前不限速时以实际吞吐为起点减半
+            long base = currentRate > 0 ? currentRate : Math.max(observed, minBytesPerSecond * 2);
+            currentRate = Math.max(minBytesPerSecond, base / 2);
+            workerLimit = Math.max(1, workerLimit / 2);
+            paused = false;
+            pauseExpired = false;
+        } else {
+            paused = false;
+            pauseExpired = false;
+            workerLimit = (int) Math.min(maxWorkers, workerLimit * 2L);
+            if (currentRate > 0) {
+                currentRate *= 2;
+                if (maxBytesPerSecond > 0) {
+                    currentRate = Math.min(currentRate, maxBytesPerSecond);
+                } else if (currentRate > Math.max(observed, minBytesPerSecond) * 4) {
+                    // 速率已远高于实际吞吐，不再起作用
+                    currentRate = 0;
+                }
+            }
+        }
+        rateLimiter.setRate(currentRate);
+        notifyAll();
+    }
+
+    /**
+     * 取得 bytes 字节的读写额度。暂停时等待服务器恢复，不足时按速率阻塞。
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        awaitResume();
+        transferred.add(bytes);
+        while (bytes > 0) {
+            int n = (int) Math.min(bytes, CHUNK_BYTES);
+            rateLimiter.acquire(n);
+            bytes -= n;
+        }
+    }
+
+    /**
+     * 开始一个读写任务，超出当前允许的线程数时等待。必须与 {@link #exitWorker()} 成对调用。
+     */
+    public synchronized void enterWorker() throws InterruptedIOException {
+        try {
+            while (activeWorkers >= workerLimit) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待备份线程额度时被中断");
+        }
+        activeWorkers++;
+    }
+
+    public synchronized void exitWorker() {
+        activeWorkers--;
+        notifyAll();
+    }
+
+    /**
+     * 读取时限速的输入流。
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    acquire(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, Math.min(len, CHUNK_BYTES));
+                if (n > 0) {
+                    acquire(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * 复制文件并保留修改时间。没有限速时直接使用 Files.copy。
+     */
+    public void copy(Path source, Path target) throws IOException {
+        if (!isLimiting()) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            transferred.add(Files.size(target));
+            return;
+        }
+        try (InputStream in = wrap(Files.newInputStream(source))) {
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+    }
+
+    public synchronized boolean isLimiting() {
+        return currentRate > 0 || paused;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    public synchronized long getCurrentRate() {
+        return currentRate;
+    }
+
+    public synchronized int getWorkerLimit() {
+        return workerLimit;
+    }
+
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+
+    public double getLastTickMillis() {
+        return lastTickMillis;
+    }
+
+    private synchronized void awaitResume() throws InterruptedIOException {
+        try {
+            while (paused) {
+                long remaining = pausedSince + maxPauseNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    // 暂停时间过长，以最低速率继续
+                    paused = false;
+                    pauseExpired = true;
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("备份暂停时被中断");
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.yauntyour.gitbackup;
+
+import java.util.Arrays;
+
+/**
+ * 存放 long 的开放寻址哈希集合，不装箱。Long.MIN_VALUE 用作空槽，不能作为元素。非线程安全。
+ */
+class LongHashSet {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] slots;
+    private int size;
+
+    LongHashSet() {
+        slots = newSlots(16);
+    }
+
+    boolean add(long value) {
+        if ((size + 1) * 2 > slots.length) {
+            resize(slots.length * 2);
+        }
+        int mask = slots.length - 1;
+        int index = mix(value) & mask;
+        while (slots[index] != EMPTY) {
+            if (slots[index] == value) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        slots[index] = value;
+        size++;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * 返回已排序的全部元素。
+     */
+    long[] toSortedArray() {
+        long[] values = new long[size];
+        int count = 0;
+        for (long slot : slots) {
+            if (slot != EMPTY) {
+                values[count++] = slot;
+            }
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    void clear() {
+        slots = newSlots(16);
+        size = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] old = slots;
+        slots = newSlots(capacity);
+        size = 0;
+        for (long value : old) {
+            if (value != EMPTY) {
+                add(value);
+            }
+        }
+    }
+
+    private static long[] newSlots(int capacity) {
+        long[] slots = new long[capacity];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+
+    private static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
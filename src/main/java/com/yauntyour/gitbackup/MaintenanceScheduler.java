@@ -0,0 +1,140 @@
+package com.yauntyour.gitbackup;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 定期检查仓库状态，在没有备份进行且在线玩家较少时运行 gc：
+ * 把松散对象打包、写入 pack 位图和 commit-graph，并清理过期的不可达对象。
+ */
+public class MaintenanceScheduler {
+    private final JavaPlugin plugin;
+    private final ConfigManager configManager;
+    private final GitManager gitManager;
+    private final BackupPipeline backupPipeline;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private BukkitTask maintenanceTask;
+    private volatile Properties statistics;
+
+    public MaintenanceScheduler(JavaPlugin plugin) {
+        this.plugin = plugin;
+        this.configManager = ((GitBackupPlugin) plugin).getConfigManager();
+        this.gitManager = ((GitBackupPlugin) plugin).getGitManager();
+        this.backupPipeline = ((GitBackupPlugin) plugin).getBackupPipeline();
+    }
+
+    public void startScheduledMaintenance() {
+        int interval = configManager.getMaintenanceInterval();
+
+        if (interval <= 0) {
+            plugin.getLogger().info("仓库维护已禁用");
+            return;
+        }
+
+        long intervalTicks = interval * 60L * 20L;
+
+        // 在主线程检查条件，满足时再到异步线程运行
+        maintenanceTask = new BukkitRunnable() {
+            @Override
+            public void run() {
+                if (backupPipeline.isRunning()) {
+                    return;
+                }
+                if (Bukkit.getOnlinePlayers().size() > configManager.getMaintenanceMaxPlayers()) {
+                    return;
+                }
+                runAsync(false);
+            }
+        }.runTaskTimer(plugin, intervalTicks, intervalTicks);
+
+        plugin.getLogger().info("已启动仓库维护，检查间隔: " + interval + " 分钟");
+    }
+
+    public void stopScheduledMaintenance() {
+        if (maintenanceTask != null) {
+            maintenanceTask.cancel();
+            maintenanceTask = null;
+        }
+    }
+
+    /**
+     * 在异步线程检查并运行维护。force 为 true 时不检查松散对象和 pack 数量阈值。
+     */
+    public void runAsync(boolean force) {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            try {
+                runMaintenance(force);
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    private void runMaintenance(boolean force) {
+        Properties before = gitManager.getRepositoryStatistics();
+        if (before == null) {
+            return;
+        }
+        statistics = before;
+
+        long looseObjects = getLong(before, "numberOfLooseObjects");
+        long packFiles = getLong(before, "numberOfPackFiles");
+        if (!force && looseObjects < configManager.getMaintenanceLooseObjects()
+                && packFiles < configManager.getMaintenancePackFiles()) {
+            return;
+        }
+
+        plugin.getLogger().info("开始仓库维护: " + looseObjects + " 个松散对象, " + packFiles + " 个 pack 文件");
+        long start = System.currentTimeMillis();
+        Properties after = gitManager.runMaintenance(gitManager.pruneExpire());
+        if (after == null) {
+            plugin.getLogger().info("仓库正在被使用，本次维护跳过");
+            return;
+        }
+        statistics = after;
+
+        plugin.getLogger().info("仓库维护完成，耗时 " + (System.currentTimeMillis() - start) + " ms: "
+                + getLong(after, "numberOfLooseObjects") + " 个松散对象, "
+                + getLong(after, "numberOfPackFiles") + " 个 pack 文件");
+    }
+
+    public void refreshStatisticsAsync() {
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            Properties properties = gitManager.getRepositoryStatistics();
+            if (properties != null) {
+                statistics = properties;
+            }
+        });
+    }
+
+    /**
+     * 最近一次检查得到的仓库统计，尚未检查过时返回 null。
+     */
+    public Properties getStatistics() {
+        return statistics;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public static long getLong(Properties properties, String key) {
+        Object value = properties.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        try {
+            return value != null ? Long.parseLong(value.toString()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
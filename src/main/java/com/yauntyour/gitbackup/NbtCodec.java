@@ -0,0 +1,60 @@
+package com.yauntyour.gitbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * level.dat、playerdata/*.dat、data/*.dat 等文件是 gzip 压缩的 NBT，每次保存后字节几乎全部不同。
+ * 仓库中把它们解压后存为 {@code <文件名>.nbt}，小的改动就只是很小的增量；恢复时重新 gzip。
+ */
+public class NbtCodec {
+    public static final String BLOB_SUFFIX = ".nbt";
+
+    public static boolean isNbtFile(String fileName) {
+        return fileName.endsWith(".dat") || fileName.endsWith(".dat_old");
+    }
+
+    public static boolean isNbtBlob(String name) {
+        return name.endsWith(".dat" + BLOB_SUFFIX) || name.endsWith(".dat_old" + BLOB_SUFFIX);
+    }
+
+    /**
+     * 解压 gzip 数据。不是 gzip 格式或数据损坏时返回 null，调用者应按普通文件存储。
+     */
+    public static byte[] decode(byte[] data) {
+        return decode(data, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * 同上，解压后超过 limit 字节时也返回 null，避免压缩率很高的文件占用大量内存。
+     */
+    public static byte[] decode(byte[] data, long limit) {
+        if (data.length < 2 || (data[0] & 0xFF) != 0x1F || (data[1] & 0xFF) != 0x8B) {
+            return null;
+        }
+        int max = (int) Math.min(limit, Integer.MAX_VALUE - 8);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] nbt = in.readNBytes(max);
+            return in.read() < 0 ? nbt : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static void encode(InputStream nbt, OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        nbt.transferTo(gzip);
+        gzip.finish();
+    }
+
+    public static byte[] encode(byte[] nbt) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(nbt.length / 2 + 64);
+        encode(new ByteArrayInputStream(nbt), buffer);
+        return buffer.toByteArray();
+    }
+}
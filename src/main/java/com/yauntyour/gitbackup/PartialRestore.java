@@ -0,0 +1,391 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * 部分恢复：只从提交的树中读取需要的文件，不检出、不恢复整个世界。
+ * <p>
+ * 服务器会缓存打开的区域文件，运行中直接替换会被它覆盖或读到旧数据，
+ * 所以区域和区块的恢复先暂存到待应用目录，在下次启动、世界加载前写入；
+ * 世界没有加载时可以立即应用。玩家文件在玩家离线时直接写入。
+ */
+public class PartialRestore {
+    // 同一坐标的区域文件分别保存方块、实体和兴趣点
+    private static final String[] REGION_DIRS = {"region", "entities", "poi"};
+    private static final String REPLACE_DIR = "replace";
+    private static final String SPLICE_DIR = "splice";
+
+    /**
+     * 在已解析的提交上执行的一次部分恢复，返回恢复的文件或区块数。
+     */
+    public interface Action {
+        int run(PartialRestore restore, RevCommit commit) throws IOException;
+    }
+
+    private final Repository repository;
+    private final Path pendingRoot;
+
+    public PartialRestore(Repository repository, Path pendingRoot) {
+        this.repository = repository;
+        this.pendingRoot = pendingRoot;
+    }
+
+    public boolean hasWorld(RevCommit commit, String prefix) throws IOException {
+        try (TreeWalk treeWalk = TreeWalk.forPath(repository, prefix, commit.getTree())) {
+            return treeWalk != null && treeWalk.isSubtree();
+        }
+    }
+
+    /**
+     * 暂存整个区域 (regionX, regionZ) 的区域文件，返回暂存的文件数。
+     */
+    public int stageRegion(RevCommit commit, String prefix, int regionX, int regionZ) throws IOException {
+        Path worldPending = pendingRoot.resolve(prefix);
+        int count = 0;
+        try (ObjectReader reader = repository.newObjectReader()) {
+            for (String dir : REGION_DIRS) {
+                String relativePath = dir + "/" + regionName(regionX, regionZ);
+                byte[] data = readFile(reader, commit, prefix, relativePath);
+                if (data == null) {
+                    continue;
+                }
+                Path target = worldPending.resolve(REPLACE_DIR).resolve(relativePath);
+                writeAtomically(target, data);
+                Files.deleteIfExists(worldPending.resolve(SPLICE_DIR).resolve(relativePath));
+                stageExternalChunks(reader, commit, prefix, dir, target, null);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 暂存区块坐标范围内（含边界）的区块，返回暂存的区块数。备份中不存在的区块保持不变。
+     */
+    public int stageArea(RevCommit commit, String prefix, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ)
+            throws IOException {
+        Path worldPending = pendingRoot.resolve(prefix);
+        int count = 0;
+        try (ObjectReader reader = repository.newObjectReader()) {
+            for (int regionX = minChunkX >> 5; regionX <= maxChunkX >> 5; regionX++) {
+                for (int regionZ = minChunkZ >> 5; regionZ <= maxChunkZ >> 5; regionZ++) {
+                    boolean[] selected = new boolean[RegionFile.CHUNK_COUNT];
+                    for (int chunkX = Math.max(minChunkX, regionX << 5); chunkX <= Math.min(maxChunkX, (regionX << 5) + 31); chunkX++) {
+                        for (int chunkZ = Math.max(minChunkZ, regionZ << 5); chunkZ <= Math.min(maxChunkZ, (regionZ << 5) + 31); chunkZ++) {
+                            selected[RegionFile.chunkIndex(chunkX, chunkZ)] = true;
+                        }
+                    }
+                    for (String dir : REGION_DIRS) {
+                        count += stageChunks(reader, commit, prefix, worldPending, dir, regionX, regionZ, selected);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private int stageChunks(ObjectReader reader, RevCommit commit, String prefix, Path worldPending, String dir,
+                            int regionX, int regionZ, boolean[] selected) throws IOException {
+        String relativePath = dir + "/" + regionName(regionX, regionZ);
+        byte[] data = readFile(reader, commit, prefix, relativePath);
+        if (data == null) {
+            return 0;
+        }
+
+        RegionFile.Chunk[] backupChunks = new RegionFile.Chunk[RegionFile.CHUNK_COUNT];
+        int[] backupTimestamps = new int[RegionFile.CHUNK_COUNT];
+        Path temp = Files.createTempFile(ensureDirectory(worldPending), "region", ".tmp");
+        try {
+            Files.write(temp, data);
+            readChunks(temp, backupChunks, backupTimestamps);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        // 已经暂存过整个区域时直接拼接进去，否则与之前暂存的区块合并
+        Path target = worldPending.resolve(REPLACE_DIR).resolve(relativePath);
+        if (!Files.exists(target)) {
+            target = worldPending.resolve(SPLICE_DIR).resolve(relativePath);
+        }
+        RegionFile.Chunk[] chunks = new RegionFile.Chunk[RegionFile.CHUNK_COUNT];
+        int[] timestamps = new int[RegionFile.CHUNK_COUNT];
+        if (Files.exists(target)) {
+            readChunks(target, chunks, timestamps);
+        }
+
+        int count = 0;
+        for (int i = 0; i < RegionFile.CHUNK_COUNT; i++) {
+            if (selected[i] && backupChunks[i] != null) {
+                chunks[i] = backupChunks[i];
+                timestamps[i] = backupTimestamps[i];
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        writeRegion(target, chunks, timestamps);
+        stageExternalChunks(reader, commit, prefix, dir, target, selected);
+        return count;
+    }
+
+    /**
+     * 超过 1 MiB 的区块单独保存在 c.X.Z.mcc 中，随区块一起暂存为整体替换。
+     */
+    private void stageExternalChunks(ObjectReader reader, RevCommit commit, String prefix, String dir, Path region,
+                                     boolean[] selected) throws IOException {
+        RegionFile.Chunk[] chunks = new RegionFile.Chunk[RegionFile.CHUNK_COUNT];
+        readChunks(region, chunks, new int[RegionFile.CHUNK_COUNT]);
+        int[] coords = parseRegionName(region.getFileName().toString());
+        for (int i = 0; i < RegionFile.CHUNK_COUNT; i++) {
+            if (chunks[i] == null || !chunks[i].isExternal() || (selected != null && !selected[i])) {
+                continue;
+            }
+            String relativePath = dir + "/c." + ((coords[0] << 5) + (i & 31)) + "." + ((coords[1] << 5) + (i >> 5)) + ".mcc";
+            byte[] data = readFile(reader, commit, prefix, relativePath);
+            if (data != null) {
+                writeAtomically(pendingRoot.resolve(prefix).resolve(REPLACE_DIR).resolve(relativePath), data);
+            }
+        }
+    }
+
+    /**
+     * 直接写出玩家的存档、进度和统计文件，调用前必须确认玩家离线。返回写出的文件数。
+     */
+    public int restorePlayer(RevCommit commit, String prefix, UUID uuid, Path worldDir) throws IOException {
+        String[] relativePaths = {
+                "playerdata/" + uuid + ".dat",
+                "advancements/" + uuid + ".json",
+                "stats/" + uuid + ".json"
+        };
+        int count = 0;
+        try (ObjectReader reader = repository.newObjectReader()) {
+            for (String relativePath : relativePaths) {
+                byte[] data = readFile(reader, commit, prefix, relativePath);
+                if (data != null) {
+                    writeAtomically(worldDir.resolve(relativePath), data);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 读取提交中 prefix/relativePath 在磁盘上的内容，区块树和解压存储的 NBT 会还原成原始格式。
+     * 文件不存在时返回 null。
+     */
+    private static byte[] readFile(ObjectReader reader, RevCommit commit, String prefix, String relativePath)
+            throws IOException {
+        String treePath = prefix + "/" + relativePath;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (RegionCodec.isRegionFile(relativePath)) {
+            try (TreeWalk treeWalk = TreeWalk.forPath(reader, treePath + RegionCodec.TREE_SUFFIX, commit.getTree())) {
+                if (treeWalk != null && treeWalk.isSubtree()) {
+                    RegionCodec.decode(reader, treeWalk.getObjectId(0), out);
+                    return out.toByteArray();
+                }
+            }
+        }
+        if (NbtCodec.isNbtFile(relativePath)) {
+            try (TreeWalk treeWalk = TreeWalk.forPath(reader, treePath + NbtCodec.BLOB_SUFFIX, commit.getTree())) {
+                if (treeWalk != null && !treeWalk.isSubtree()) {
+                    try (InputStream in = reader.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).openStream()) {
+                        NbtCodec.encode(in, out);
+                    }
+                    return out.toByteArray();
+                }
+            }
+        }
+        try (TreeWalk treeWalk = TreeWalk.forPath(reader, treePath, commit.getTree())) {
+            if (treeWalk == null || treeWalk.isSubtree()) {
+                return null;
+            }
+            return reader.open(treeWalk.getObjectId(0), Constants.OBJ_BLOB).getBytes(Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * 把暂存的恢复写入世界目录。在服务器加载世界之前（或世界未加载时）调用；worldName 为 null 时应用所有世界。
+     * 返回应用的文件数。
+     */
+    public static int applyPending(Path pendingRoot, Path worldContainer, String worldName, Logger logger) {
+        if (!Files.isDirectory(pendingRoot)) {
+            return 0;
+        }
+        int count = 0;
+        try (DirectoryStream<Path> worlds = Files.newDirectoryStream(pendingRoot)) {
+            for (Path worldPending : worlds) {
+                String name = worldPending.getFileName().toString();
+                if (!Files.isDirectory(worldPending) || (worldName != null && !worldName.equals(name))) {
+                    continue;
+                }
+                Path worldDir = worldContainer.resolve(name);
+                count += applyReplacements(worldPending.resolve(REPLACE_DIR), worldDir);
+                count += applySplices(worldPending.resolve(SPLICE_DIR), worldDir);
+                deleteRecursively(worldPending);
+                logger.info("已将暂存的部分恢复应用到世界 '" + name + "'");
+            }
+        } catch (IOException e) {
+            logger.severe("应用暂存的部分恢复时出错: " + e.getMessage());
+            e.printStackTrace();
+            return count;
+        }
+        try {
+            // 其它世界还有暂存内容时保留目录
+            Files.deleteIfExists(pendingRoot);
+        } catch (DirectoryNotEmptyException ignored) {
+        } catch (IOException e) {
+            logger.warning("删除暂存目录时出错: " + e.getMessage());
+        }
+        return count;
+    }
+
+    private static int applyReplacements(Path replaceDir, Path worldDir) throws IOException {
+        List<Path> files = listFiles(replaceDir);
+        for (Path file : files) {
+            Path target = worldDir.resolve(replaceDir.relativize(file).toString());
+            Files.createDirectories(target.getParent());
+            Files.move(file, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return files.size();
+    }
+
+    private static int applySplices(Path spliceDir, Path worldDir) throws IOException {
+        List<Path> files = listFiles(spliceDir);
+        for (Path file : files) {
+            Path target = worldDir.resolve(spliceDir.relativize(file).toString());
+            if (!Files.exists(target)) {
+                Files.createDirectories(target.getParent());
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                continue;
+            }
+
+            // 以世界中当前的区域文件为基础，只替换暂存的区块
+            RegionFile.Chunk[] chunks = new RegionFile.Chunk[RegionFile.CHUNK_COUNT];
+            int[] timestamps = new int[RegionFile.CHUNK_COUNT];
+            readChunks(target, chunks, timestamps);
+            RegionFile.Chunk[] restored = new RegionFile.Chunk[RegionFile.CHUNK_COUNT];
+            int[] restoredTimestamps = new int[RegionFile.CHUNK_COUNT];
+            readChunks(file, restored, restoredTimestamps);
+            for (int i = 0; i < RegionFile.CHUNK_COUNT; i++) {
+                if (restored[i] != null) {
+                    chunks[i] = restored[i];
+                    timestamps[i] = restoredTimestamps[i];
+                }
+            }
+            writeRegion(target, chunks, timestamps);
+        }
+        return files.size();
+    }
+
+    private static void readChunks(Path file, RegionFile.Chunk[] chunks, int[] timestamps) throws IOException {
+        try (FileChannel channel = FileChannel.open(file)) {
+            RegionFile header = RegionFile.readHeader(channel);
+            if (header == null) {
+                return;
+            }
+            for (int i = 0; i < RegionFile.CHUNK_COUNT; i++) {
+                if (header.hasChunk(i)) {
+                    chunks[i] = header.readChunk(channel, i);
+                    timestamps[i] = header.getTimestamp(i);
+                }
+            }
+        }
+    }
+
+    private static void writeRegion(Path target, RegionFile.Chunk[] chunks, int[] timestamps) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                RegionFile.write(out, chunks, timestamps);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeAtomically(Path target, byte[] data) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, data);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static Path ensureDirectory(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        return dir;
+    }
+
+    private static List<Path> listFiles(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return files;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    public static String regionName(int regionX, int regionZ) {
+        return "r." + regionX + "." + regionZ + ".mca";
+    }
+
+    private static int[] parseRegionName(String fileName) {
+        String[] parts = fileName.split("\\.");
+        return new int[]{Integer.parseInt(parts[1]), Integer.parseInt(parts[2])};
+    }
+}
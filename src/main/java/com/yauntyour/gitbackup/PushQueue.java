@@ -0,0 +1,295 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.HttpTransport;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.eclipse.jgit.transport.http.HttpConnectionFactory;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * 独立的推送线程：备份提交后只记一笔，攒够 git.push.every 个备份再一次推送 HEAD，
+ * 失败时按指数退避重试，期间新增的备份会合并到同一次推送中。
+ * <p>
+ * 平时是普通的快进推送。只有保留策略重写过历史后才强制推送，并且以上次推送的提交作为远程分支的预期值，
+ * 远程分支被其他人更新过时推送会被拒绝，不会覆盖。网络传输不持有仓库锁，只在记录推送状态时持有。
+ */
+public class PushQueue {
+    private static final String CONFIG_SECTION = "gitbackup";
+    private static final String CONFIG_KEY_LAST_PUSHED = "lastPushed";
+    private static final String CONFIG_KEY_HISTORY_REWRITTEN = "historyRewritten";
+
+    private final Git git;
+    private final ReentrantLock repositoryLock;
+    private final ConfigManager configManager;
+    private final Logger logger;
+    private final BackupMetrics metrics;
+    private final ScheduledExecutorService executor;
+    private final RateLimiter rateLimiter = new RateLimiter(0);
+
+    // 以下字段由 this 保护
+    private int unpushedBackups;
+    private long oldestUnpushed;
+    private int failures;
+    private ScheduledFuture<?> scheduled;
+    private long nextAttempt;
+
+    private volatile long lastPushTime;
+    private volatile String lastError;
+
+    public PushQueue(Git git, ReentrantLock repositoryLock, ConfigManager configManager, Logger logger,
+                     BackupMetrics metrics, IoThrottle throttle) {
+        this.git = git;
+        this.repositoryLock = repositoryLock;
+        this.configManager = configManager;
+        this.logger = logger;
+        this.metrics = metrics;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "GitBackup-Push");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // 关闭时不再执行等待中的重试
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.executor = executor;
+
+        // 限速只能作用在 HTTP(S) 传输上，SSH 和本地传输不经过连接工厂
+        if (!(HttpTransport.getConnectionFactory() instanceof ThrottledHttpConnectionFactory)) {
+            HttpTransport.setConnectionFactory(
+                    new ThrottledHttpConnectionFactory(HttpTransport.getConnectionFactory(), rateLimiter, throttle));
+        }
+    }
+
+    /**
+     * 每次创建备份提交后调用，不会阻塞调用线程。
+     */
+    public synchronized void backupCommitted() {
+        if (configManager.getRemoteUrl().isEmpty()) {
+            return;
+        }
+        if (unpushedBackups == 0) {
+            oldestUnpushed = System.currentTimeMillis();
+        }
+        unpushedBackups++;
+
+        // 正在重试时不提前推送，等退避结束后一起推送
+        if (scheduled == null && unpushedBackups >= Math.max(1, configManager.getPushEvery())) {
+            schedule(0);
+        }
+    }
+
+    /**
+     * 保留策略删除了提交后调用（调用者持有仓库锁），下一次推送需要强制更新远程分支。
+     */
+    public void historyRewritten() throws IOException {
+        StoredConfig config = git.getRepository().getConfig();
+        config.setBoolean(CONFIG_SECTION, null, CONFIG_KEY_HISTORY_REWRITTEN, true);
+        config.save();
+    }
+
+    /**
+     * 立即推送所有尚未推送的备份。
+     */
+    public synchronized void pushNow() {
+        if (unpushedBackups > 0 && scheduled == null) {
+            schedule(0);
+        }
+    }
+
+    private void schedule(long delayMillis) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        nextAttempt = System.currentTimeMillis() + delayMillis;
+        scheduled = executor.schedule(this::push, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void push() {
+        int batch;
+        synchronized (this) {
+            scheduled = null;
+            batch = unpushedBackups;
+        }
+        if (batch == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long uploaded = getUploadedBytes();
+        try {
+            Repository repository = git.getRepository();
+            StoredConfig config = repository.getConfig();
+            String remoteRef = Constants.R_HEADS + configManager.getBranch();
+            RemoteRefUpdate update;
+            boolean rewritten = config.getBoolean(CONFIG_SECTION, null, CONFIG_KEY_HISTORY_REWRITTEN, false);
+            String lastPushed = config.getString(CONFIG_SECTION, null, CONFIG_KEY_LAST_PUSHED);
+            if (rewritten && lastPushed != null && ObjectId.isId(lastPushed)) {
+                // 远程分支仍是上次推送的提交时才覆盖
+                update = new RemoteRefUpdate(repository, Constants.HEAD, remoteRef, true, null,
+                        ObjectId.fromString(lastPushed));
+            } else {
+                if (rewritten) {
+                    logger.warning("历史已被保留策略重写，但没有上次推送的记录，不会强制推送；"
+                            + "远程分支包含已删除的备份时推送会被拒绝");
+                }
+                update = new RemoteRefUpdate(repository, Constants.HEAD, remoteRef, false, null, null);
+            }
+
+            rateLimiter.setRate(configManager.getPushBandwidthLimit() * 1024L);
+            PushResult result;
+            try (Transport transport = Transport.open(repository, configManager.getRemoteUrl())) {
+                transport.setTimeout(configManager.getPushTimeout());
+                transport.setCredentialsProvider(createCredentialsProvider());
+                result = transport.push(NullProgressMonitor.INSTANCE, List.of(update));
+            }
+            RemoteRefUpdate remote = result.getRemoteUpdate(remoteRef);
+            if (remote == null || (remote.getStatus() != RemoteRefUpdate.Status.OK
+                    && remote.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE)) {
+                RemoteRefUpdate failed = remote != null ? remote : update;
+                throw new IllegalStateException("远程拒绝更新 " + remoteRef + ": " + failed.getStatus()
+                        + (failed.getMessage() != null ? " " + failed.getMessage() : ""));
+            }
+            recordPushed(update.getNewObjectId(), rewritten);
+            pushSucceeded(batch);
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            pushFailed(e);
+        } finally {
+            metrics.recordSingle(BackupMetrics.Phase.PUSH, System.nanoTime() - start);
+            metrics.addPushBytes(getUploadedBytes() - uploaded);
+            metrics.export(logger);
+        }
+    }
+
+    /**
+     * 记录推送到远程的提交，作为下次强制推送的预期值。历史在推送期间又被重写时保留强制推送的标记。
+     */
+    private void recordPushed(ObjectId pushed, boolean rewritten) throws IOException {
+        repositoryLock.lock();
+        try {
+            StoredConfig config = git.getRepository().getConfig();
+            config.setString(CONFIG_SECTION, null, CONFIG_KEY_LAST_PUSHED, pushed.name());
+            if (rewritten && isAncestorOfHead(pushed)) {
+                config.unset(CONFIG_SECTION, null, CONFIG_KEY_HISTORY_REWRITTEN);
+            }
+            config.save();
+        } finally {
+            repositoryLock.unlock();
+        }
+    }
+
+    private boolean isAncestorOfHead(ObjectId commit) throws IOException {
+        Repository repository = git.getRepository();
+        ObjectId head = repository.resolve(Constants.HEAD);
+        if (head == null) {
+            return false;
+        }
+        try (RevWalk revWalk = new RevWalk(repository)) {
+            return revWalk.isMergedInto(revWalk.parseCommit(commit), revWalk.parseCommit(head));
+        }
+    }
+
+    /**
+     * 只能统计 HTTP(S) 传输上传的字节数，其他传输不经过连接工厂。
+     */
+    private static long getUploadedBytes() {
+        HttpConnectionFactory factory = HttpTransport.getConnectionFactory();
+        return factory instanceof ThrottledHttpConnectionFactory
+                ? ((ThrottledHttpConnectionFactory) factory).getUploadedBytes() : 0;
+    }
+
+    private synchronized void pushSucceeded(int batch) {
+        unpushedBackups -= batch;
+        failures = 0;
+        lastError = null;
+        lastPushTime = System.currentTimeMillis();
+        logger.info("已推送 " + batch + " 个备份到远程仓库");
+
+        // 推送期间又攒够了备份就接着推送
+        if (unpushedBackups > 0) {
+            oldestUnpushed = lastPushTime;
+            if (unpushedBackups >= Math.max(1, configManager.getPushEvery())) {
+                schedule(0);
+            }
+        }
+    }
+
+    private synchronized void pushFailed(Exception e) {
+        failures++;
+        lastError = e.getMessage();
+        long baseDelay = Math.max(1, configManager.getPushRetryDelay()) * 1000L;
+        long maxDelay = Math.max(baseDelay, configManager.getPushMaxRetryDelay() * 1000L);
+        long delay = Math.min(maxDelay, baseDelay << Math.min(failures - 1, 20));
+        logger.warning("推送到远程仓库失败（第 " + failures + " 次）: " + e.getMessage()
+                + "，" + (delay / 1000) + " 秒后重试");
+        schedule(delay);
+    }
+
+    private UsernamePasswordCredentialsProvider createCredentialsProvider() {
+        String username = configManager.getPushUsername();
+        String password = configManager.getPushPassword();
+        if (username.isEmpty() && password.isEmpty()) {
+            return null;
+        }
+        return new UsernamePasswordCredentialsProvider(username, password);
+    }
+
+    public synchronized int getUnpushedBackups() {
+        return unpushedBackups;
+    }
+
+    /**
+     * 最早一个未推送的备份已经等待的毫秒数，全部推送时返回 0。
+     */
+    public synchronized long getLag() {
+        return unpushedBackups > 0 ? System.currentTimeMillis() - oldestUnpushed : 0;
+    }
+
+    /**
+     * 下一次推送尝试的时间（毫秒），没有等待中的推送时返回 0。
+     */
+    public synchronized long getNextAttempt() {
+        return scheduled != null ? nextAttempt : 0;
+    }
+
+    public long getLastPushTime() {
+        return lastPushTime;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            // 正在进行的推送最多等待 10 秒
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        int pending = getUnpushedBackups();
+        if (pending > 0) {
+            logger.warning("还有 " + pending + " 个备份尚未推送到远程仓库，将在下次推送时一并推送");
+        }
+    }
+}
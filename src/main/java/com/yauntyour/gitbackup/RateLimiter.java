@@ -0,0 +1,51 @@
+package com.yauntyour.gitbackup;
+
+import java.io.InterruptedIOException;
+
+/**
+ * 令牌桶限速器：按字节计数，桶容量为一秒的流量。速率为 0 表示不限速。
+ */
+public class RateLimiter {
+    private volatile long bytesPerSecond;
+    private double available;
+    private long lastRefill = System.nanoTime();
+
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * 取得 bytes 个令牌，令牌不足时阻塞到补足为止。
+     */
+    public synchronized void acquire(int bytes) throws InterruptedIOException {
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        available = Math.min(rate, available + (now - lastRefill) * rate / 1e9);
+        lastRefill = now;
+        available -= bytes;
+        if (available >= 0) {
+            return;
+        }
+
+        // 欠下的令牌按速率折算成等待时间，其他线程在此期间排队
+        long waitNanos = (long) (-available * 1e9 / rate);
+        try {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("限速等待被中断");
+        }
+    }
+}
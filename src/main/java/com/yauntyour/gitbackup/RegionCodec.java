@@ -0,0 +1,381 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 区域文件的仓库存储格式：每个 r.x.z.mca 存为一个 r.x.z.mca.chunks 目录，
+ * 其中每个区块解压后单独存为 {@code c.<序号>}，index 记录每个区块的时间戳、压缩方式和扇区位置，
+ * 以及没有区块的位置上不为 0 的时间戳（只有序号和时间戳两列）。
+ * 未变化的区块得到相同的 blob，变化的区块也能很好地做增量压缩。恢复时重新压缩并组装成合法的区域文件：
+ * 文件头的 1024 个时间戳和每个区块的数据都与原文件相同，但区块按序号紧凑排列、重新压缩，
+ * 文件本身不保证与原文件逐字节相同。
+ */
+public class RegionCodec {
+    public static final String TREE_SUFFIX = ".chunks";
+    public static final String INDEX_NAME = "index";
+    private static final String INDEX_HEADER = "gitbackup-region 1";
+    private static final String ENCODING_NBT = "nbt";
+    private static final String ENCODING_RAW = "raw";
+
+    public static boolean isRegionFile(String fileName) {
+        return fileName.endsWith(".mca");
+    }
+
+    public static boolean isRegionTree(String name) {
+        return name.endsWith(".mca" + TREE_SUFFIX);
+    }
+
+    /**
+     * 把区域文件写成一棵树并返回树的 ObjectId。文件不是有效的区域文件时返回 null，调用者应按普通文件存储。
+     * previousTree 是上一次备份中这个区域文件的区块树：只读取 8 KiB 文件头，
+     * 时间戳和扇区位置都没变的区块直接复用上次的 blob，不会被读取；所有区块都没变时直接返回 previousTree。
+     * 无法读取的区块沿用上次的 blob 并计入 {@link Stats#getDamagedChunks()}，上次也没有时抛出 IOException。
+     */
+    public static ObjectId encode(Path file, ObjectInserter inserter, ObjectReader reader, ObjectId previousTree,
+                                  Stats stats) throws IOException {
+        return encode(file, inserter, reader, previousTree, stats, null);
+    }
+
+    /**
+     * 同上，读取的文件头和区块经过 throttle 限速（null 表示不限速）。
+     */
+    public static ObjectId encode(Path file, ObjectInserter inserter, ObjectReader reader, ObjectId previousTree,
+                                  Stats stats, IoThrottle throttle) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            RegionFile region = RegionFile.readHeader(channel);
+            if (region == null) {
+                return null;
+            }
+            if (throttle != null) {
+                throttle.acquire(RegionFile.HEADER_BYTES);
+            }
+
+            Map<Integer, IndexLine> previousIndex = new HashMap<>();
+            Map<Integer, Integer> previousEmpty = new HashMap<>();
+            Map<String, ObjectId> previousBlobs = new HashMap<>();
+            if (previousTree != null) {
+                try {
+                    previousBlobs = readTree(reader, previousTree);
+                    previousIndex = readIndex(reader, previousBlobs.get(INDEX_NAME), previousEmpty);
+                } catch (IOException e) {
+                    // 上一次的树不可用时完整读取
+                    previousIndex = new HashMap<>();
+                    previousEmpty = new HashMap<>();
+                }
+            }
+
+            Map<String, ObjectId> blobs = new TreeMap<>();
+            Map<Integer, Integer> empty = new HashMap<>();
+            StringBuilder index = new StringBuilder(INDEX_HEADER).append('\n');
+            int reused = 0;
+            int present = 0;
+            for (int i = 0; i < RegionFile.CHUNK_COUNT; i++) {
+                if (!region.hasChunk(i)) {
+                    // 区块被删除后时间戳可能还留在文件头里，一并记录才能原样恢复
+                    if (region.getTimestamp(i) != 0) {
+                        empty.put(i, region.getTimestamp(i));
+                        index.append(i).append(' ').append(region.getTimestamp(i)).append('\n');
+                    }
+                    continue;
+                }
+                present++;
+
+                IndexLine previous = previousIndex.get(i);
+                ObjectId previousBlob = previousBlobs.get(chunkName(i));
+                if (previous != null && previousBlob != null && previous.location == region.getLocation(i)
+                        && previous.timestamp == region.getTimestamp(i)) {
+                    blobs.put(chunkName(i), previousBlob);
+                    index.append(previous.line).append('\n');
+                    reused++;
+                    continue;
+                }
+
+                RegionFile.Chunk chunk = region.readChunk(channel, i);
+                if (chunk == null) {
+                    // 文件头指向的数据不完整（通常是服务器正在写入），沿用上一次备份的区块；
+                    // 上一次也没有这个区块时整个区域文件失败，由调用者处理，不能把区块当作不存在
+                    if (previous == null || previousBlob == null) {
+                        throw new IOException("区块 " + i + " 无法读取，上一次备份中也没有它: " + file);
+                    }
+                    blobs.put(chunkName(i), previousBlob);
+                    index.append(previous.line).append('\n');
+                    if (stats != null) {
+                        stats.damagedChunks.incrementAndGet();
+                    }
+                    continue;
+                }
+                if (throttle != null) {
+                    throttle.acquire(chunk.getPayload().length + 5L);
+                }
+
+                byte[] data = chunk.getPayload();
+                String encoding = ENCODING_RAW;
+                if (!chunk.isExternal()) {
+                    byte[] decoded = decompress(chunk.getType(), data);
+                    if (decoded != null) {
+                        data = decoded;
+                        encoding = ENCODING_NBT;
+                    }
+                }
+
+                blobs.put(chunkName(i), inserter.insert(Constants.OBJ_BLOB, data));
+                index.append(i).append(' ').append(region.getTimestamp(i)).append(' ')
+                        .append(chunk.getType() & 0xFF).append(' ').append(encoding).append(' ')
+                        .append(region.getLocation(i)).append('\n');
+            }
+
+            if (stats != null) {
+                stats.readChunks.addAndGet(present - reused);
+                stats.reusedChunks.addAndGet(reused);
+            }
+            // 所有区块都没变、没有区块被删除且空位置的时间戳也没变，整个区域文件沿用上次的树
+            if (previousTree != null && reused == present && present == previousIndex.size()
+                    && empty.equals(previousEmpty)) {
+                return previousTree;
+            }
+
+            blobs.put(INDEX_NAME, inserter.insert(Constants.OBJ_BLOB, index.toString().getBytes(StandardCharsets.UTF_8)));
+
+            // TreeMap 按名称排序，与 git 树要求的顺序一致（都是普通文件）
+            TreeFormatter tree = new TreeFormatter();
+            for (Map.Entry<String, ObjectId> entry : blobs.entrySet()) {
+                tree.append(entry.getKey(), FileMode.REGULAR_FILE, entry.getValue());
+            }
+            return inserter.insert(tree);
+        }
+    }
+
+    /**
+     * 从仓库中的区块树重新组装区域文件。整个区域文件会经过内存，写入文件时使用 {@link #decode(ObjectReader, ObjectId, FileChannel)}。
+     */
+    public static void decode(ObjectReader reader, ObjectId treeId, OutputStream out) throws IOException {
+        RegionFile.Chunk[] chunks = new RegionFile.Chunk[RegionFile.CHUNK_COUNT];
+        int[] timestamps = new int[RegionFile.CHUNK_COUNT];
+        for (StoredChunk stored : readChunks(reader, treeId, timestamps)) {
+            chunks[stored.index] = stored.load(reader);
+            timestamps[stored.index] = stored.timestamp;
+        }
+        RegionFile.write(out, chunks, timestamps);
+    }
+
+    /**
+     * 从仓库中的区块树重新组装区域文件并写入 channel，逐个区块读取和写出，不会把整个区域读入内存。
+     */
+    public static void decode(ObjectReader reader, ObjectId treeId, FileChannel channel) throws IOException {
+        RegionFile.Writer writer = new RegionFile.Writer(channel);
+        int[] timestamps = new int[RegionFile.CHUNK_COUNT];
+        for (StoredChunk stored : readChunks(reader, treeId, timestamps)) {
+            writer.append(stored.index, stored.load(reader), stored.timestamp);
+        }
+        for (int i = 0; i < RegionFile.CHUNK_COUNT; i++) {
+            if (timestamps[i] != 0) {
+                writer.setTimestamp(i, timestamps[i]);
+            }
+        }
+        writer.finish();
+    }
+
+    /**
+     * 读取区块树的 index，按区块序号排序返回；没有区块的位置上记录的时间戳写入 emptyTimestamps。
+     */
+    private static Collection<StoredChunk> readChunks(ObjectReader reader, ObjectId treeId, int[] emptyTimestamps)
+            throws IOException {
+        Map<String, ObjectId> blobs = readTree(reader, treeId);
+        ObjectId indexId = blobs.get(INDEX_NAME);
+        if (indexId == null) {
+            throw new IOException("区块树缺少 index: " + treeId.name());
+        }
+
+        Map<Integer, StoredChunk> chunks = new TreeMap<>();
+        String index = new String(reader.open(indexId, Constants.OBJ_BLOB).getCachedBytes(), StandardCharsets.UTF_8);
+        for (String line : index.split("\n")) {
+            String[] parts = line.split(" ");
+            if (line.isEmpty() || line.equals(INDEX_HEADER)) {
+                continue;
+            }
+            if (parts.length == 2) {
+                emptyTimestamps[Integer.parseInt(parts[0])] = Integer.parseInt(parts[1]);
+                continue;
+            }
+            if (parts.length < 4) {
+                continue;
+            }
+            int i = Integer.parseInt(parts[0]);
+            ObjectId blobId = blobs.get(chunkName(i));
+            if (blobId == null) {
+                continue;
+            }
+            chunks.put(i, new StoredChunk(i, Integer.parseInt(parts[1]), (byte) Integer.parseInt(parts[2]),
+                    ENCODING_NBT.equals(parts[3]), blobId));
+        }
+        return chunks.values();
+    }
+
+    private static Map<Integer, IndexLine> readIndex(ObjectReader reader, ObjectId indexId,
+                                                     Map<Integer, Integer> emptyTimestamps) throws IOException {
+        Map<Integer, IndexLine> lines = new HashMap<>();
+        if (indexId == null) {
+            return lines;
+        }
+        String index = new String(reader.open(indexId, Constants.OBJ_BLOB).getCachedBytes(), StandardCharsets.UTF_8);
+        for (String line : index.split("\n")) {
+            String[] parts = line.split(" ");
+            if (parts.length == 2 && !line.equals(INDEX_HEADER)) {
+                emptyTimestamps.put(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+                continue;
+            }
+            // 旧格式的 index 没有记录扇区位置，这些区块会被重新读取
+            if (parts.length < 5) {
+                continue;
+            }
+            lines.put(Integer.parseInt(parts[0]),
+                    new IndexLine(line, Integer.parseInt(parts[1]), Integer.parseInt(parts[4])));
+        }
+        return lines;
+    }
+
+    static Map<String, ObjectId> readTree(ObjectReader reader, ObjectId treeId) throws IOException {
+        Map<String, ObjectId> entries = new TreeMap<>();
+        try (TreeWalk treeWalk = new TreeWalk(reader)) {
+            treeWalk.addTree(treeId);
+            treeWalk.setRecursive(false);
+            while (treeWalk.next()) {
+                entries.put(treeWalk.getNameString(), treeWalk.getObjectId(0));
+            }
+        }
+        return entries;
+    }
+
+    private static class StoredChunk {
+        private final int index;
+        private final int timestamp;
+        private final byte type;
+        private final boolean nbt;
+        private final ObjectId blobId;
+
+        private StoredChunk(int index, int timestamp, byte type, boolean nbt, ObjectId blobId) {
+            this.index = index;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.nbt = nbt;
+            this.blobId = blobId;
+        }
+
+        private RegionFile.Chunk load(ObjectReader reader) throws IOException {
+            byte[] data = reader.open(blobId, Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE);
+            return new RegionFile.Chunk(type, nbt ? compress(type, data) : data);
+        }
+    }
+
+    private static class IndexLine {
+        private final String line;
+        private final int timestamp;
+        private final int location;
+
+        private IndexLine(String line, int timestamp, int location) {
+            this.line = line;
+            this.timestamp = timestamp;
+            this.location = location;
+        }
+    }
+
+    /**
+     * 一次备份中读取和复用的区块数量。
+     */
+    public static class Stats {
+        private final AtomicInteger readChunks = new AtomicInteger();
+        private final AtomicInteger reusedChunks = new AtomicInteger();
+        private final AtomicInteger damagedChunks = new AtomicInteger();
+
+        public int getReadChunks() {
+            return readChunks.get();
+        }
+
+        public int getReusedChunks() {
+            return reusedChunks.get();
+        }
+
+        /**
+         * 无法读取、沿用了上一次备份内容的区块数。
+         */
+        public int getDamagedChunks() {
+            return damagedChunks.get();
+        }
+
+        public void add(Stats other) {
+            readChunks.addAndGet(other.getReadChunks());
+            reusedChunks.addAndGet(other.getReusedChunks());
+            damagedChunks.addAndGet(other.getDamagedChunks());
+        }
+    }
+
+    static String chunkName(int index) {
+        return "c." + index;
+    }
+
+    private static byte[] decompress(byte type, byte[] data) throws IOException {
+        InputStream in;
+        switch (type) {
+            case RegionFile.COMPRESSION_GZIP:
+                in = new GZIPInputStream(new ByteArrayInputStream(data));
+                break;
+            case RegionFile.COMPRESSION_ZLIB:
+                in = new InflaterInputStream(new ByteArrayInputStream(data));
+                break;
+            case RegionFile.COMPRESSION_NONE:
+                return data;
+            default:
+                // LZ4 或自定义压缩，原样保存
+                return null;
+        }
+        try (InputStream input = in) {
+            return input.readAllBytes();
+        } catch (IOException e) {
+            // 数据损坏时原样保存，恢复时也能得到原来的字节
+            return null;
+        }
+    }
+
+    private static byte[] compress(byte type, byte[] data) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 4 + 64);
+        switch (type) {
+            case RegionFile.COMPRESSION_GZIP:
+                try (OutputStream out = new GZIPOutputStream(buffer)) {
+                    out.write(data);
+                }
+                return buffer.toByteArray();
+            case RegionFile.COMPRESSION_ZLIB:
+                try (OutputStream out = new DeflaterOutputStream(buffer)) {
+                    out.write(data);
+                }
+                return buffer.toByteArray();
+            default:
+                return data;
+        }
+    }
+}
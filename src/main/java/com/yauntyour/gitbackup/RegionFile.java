@@ -0,0 +1,217 @@
+package com.yauntyour.gitbackup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Anvil 区域文件（.mca）的读写。文件以 4 KiB 扇区为单位：
+ * 第 0 扇区是 1024 个区块的位置（3 字节扇区偏移 + 1 字节扇区数），第 1 扇区是 1024 个最后修改时间，
+ * 之后每个区块是 4 字节长度、1 字节压缩类型和压缩后的数据。
+ */
+public class RegionFile {
+    public static final int SECTOR_BYTES = 4096;
+    public static final int CHUNK_COUNT = 1024;
+    public static final int HEADER_BYTES = SECTOR_BYTES * 2;
+
+    public static final byte COMPRESSION_GZIP = 1;
+    public static final byte COMPRESSION_ZLIB = 2;
+    public static final byte COMPRESSION_NONE = 3;
+    // 区块数据过大时存放在同目录的 c.x.z.mcc 中，类型字节带上这个标志
+    public static final int EXTERNAL_FLAG = 0x80;
+
+    private final int[] locations;
+    private final int[] timestamps;
+
+    private RegionFile(int[] locations, int[] timestamps) {
+        this.locations = locations;
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * 读取 8 KiB 的文件头。文件不足一个完整文件头时返回 null（服务器有时会留下空的区域文件）。
+     */
+    public static RegionFile readHeader(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_BYTES) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, 0);
+        header.flip();
+
+        int[] locations = new int[CHUNK_COUNT];
+        int[] timestamps = new int[CHUNK_COUNT];
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            locations[i] = header.getInt(i * 4);
+            timestamps[i] = header.getInt(SECTOR_BYTES + i * 4);
+        }
+        return new RegionFile(locations, timestamps);
+    }
+
+    public boolean hasChunk(int index) {
+        return locations[index] != 0;
+    }
+
+    public int getLocation(int index) {
+        return locations[index];
+    }
+
+    public int getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * 只读取一个区块，不会把整个区域文件读入内存。区块损坏时返回 null。
+     */
+    public Chunk readChunk(FileChannel channel, int index) throws IOException {
+        int location = locations[index];
+        if (location == 0) {
+            return null;
+        }
+        long offset = (long) (location >>> 8) * SECTOR_BYTES;
+        int sectors = location & 0xFF;
+        if (offset < HEADER_BYTES || offset + 5 > channel.size()) {
+            return null;
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(5);
+        readFully(channel, head, offset);
+        int length = head.getInt(0);
+        byte type = head.get(4);
+        // 扇区数为 255 时实际长度可能超出，以区块头中的长度为准，但不能超出文件
+        if (length < 1 || (sectors < 255 && length + 4 > sectors * SECTOR_BYTES)
+                || offset + 4 + length > channel.size()) {
+            return null;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(length - 1);
+        readFully(channel, payload, offset + 5);
+        return new Chunk(type, payload.array());
+    }
+
+    /**
+     * 按区块顺序紧凑地写出一个完整的区域文件。chunks 中为 null 的位置表示没有区块。
+     */
+    public static void write(OutputStream out, Chunk[] chunks, int[] timestamps) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        int sector = 2;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            Chunk chunk = chunks[i];
+            if (chunk != null) {
+                int sectors = chunk.sectorCount();
+                header.putInt(i * 4, (sector << 8) | Math.min(sectors, 255));
+                sector += sectors;
+            }
+            header.putInt(SECTOR_BYTES + i * 4, timestamps[i]);
+        }
+        out.write(header.array());
+
+        byte[] padding = new byte[SECTOR_BYTES];
+        for (Chunk chunk : chunks) {
+            if (chunk == null) {
+                continue;
+            }
+            ByteBuffer head = ByteBuffer.allocate(5);
+            head.putInt(chunk.payload.length + 1);
+            head.put(chunk.type);
+            out.write(head.array());
+            out.write(chunk.payload);
+            int used = (chunk.payload.length + 5) % SECTOR_BYTES;
+            if (used != 0) {
+                out.write(padding, 0, SECTOR_BYTES - used);
+            }
+        }
+    }
+
+    /**
+     * 逐个区块写出区域文件，最后再写文件头，任何时候只有一个区块在内存中。
+     * 按区块序号递增的顺序追加时，写出的文件与 {@link #write} 完全相同。
+     */
+    public static class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        private int sector = 2;
+
+        public Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        public void append(int index, Chunk chunk, int timestamp) throws IOException {
+            int sectors = chunk.sectorCount();
+            header.putInt(index * 4, (sector << 8) | Math.min(sectors, 255));
+            header.putInt(SECTOR_BYTES + index * 4, timestamp);
+
+            // 最后一个扇区补零，凑满整个扇区
+            ByteBuffer data = ByteBuffer.allocate(sectors * SECTOR_BYTES);
+            data.putInt(chunk.payload.length + 1);
+            data.put(chunk.type);
+            data.put(chunk.payload);
+            data.clear();
+            writeFully(channel, data, (long) sector * SECTOR_BYTES);
+            sector += sectors;
+        }
+
+        /**
+         * 设置没有区块的位置上的时间戳。
+         */
+        public void setTimestamp(int index, int timestamp) {
+            header.putInt(SECTOR_BYTES + index * 4, timestamp);
+        }
+
+        /**
+         * 写出文件头并截去多余的内容（目标文件原来可能更长）。
+         */
+        public void finish() throws IOException {
+            header.clear();
+            writeFully(channel, header, 0);
+            channel.truncate((long) sector * SECTOR_BYTES);
+        }
+    }
+
+    public static int chunkIndex(int chunkX, int chunkZ) {
+        return (chunkX & 31) + (chunkZ & 31) * 32;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("区域文件被截断");
+            }
+        }
+    }
+
+    public static class Chunk {
+        private final byte type;
+        private final byte[] payload;
+
+        public Chunk(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public boolean isExternal() {
+            return (type & EXTERNAL_FLAG) != 0;
+        }
+
+        private int sectorCount() {
+            return (payload.length + 5 + SECTOR_BYTES - 1) / SECTOR_BYTES;
+        }
+    }
+}
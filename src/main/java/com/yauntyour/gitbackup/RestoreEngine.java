@@ -0,0 +1,366 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * 从对象库差异恢复世界：把当前世界与目标提交的树逐个文件比较，
+ * 未变化的文件直接复制到暂存目录，只有不同的文件从对象库并行写出。
+ * 服务器运行时世界目录一直被占用，关闭时还会写回内存中的区块，所以暂存结果在下次启动、
+ * 世界加载前由 {@link #applyPending} 用重命名换成世界目录。不会修改备份仓库的 HEAD。
+ * <p>
+ * 暂存目录 {@code <restoreRoot>/staging/<世界名>} 全部写完后由 {@link #markReady} 移到
+ * {@code <restoreRoot>/ready/<世界名>}，启动时只应用 ready 中的世界，写了一半的暂存不会被应用。
+ */
+public class RestoreEngine {
+    private static final String STAGING_DIR = "staging";
+    private static final String READY_DIR = "ready";
+
+    private final Repository repository;
+    private final Logger logger;
+    private final StatCache statCache;
+    private final ExecutorService executor;
+    private boolean compareFileKey = true;
+    private long streamThreshold = DirectCommitEngine.DEFAULT_STREAM_THRESHOLD;
+
+    public RestoreEngine(Repository repository, Logger logger, StatCache statCache, ExecutorService executor) {
+        this.repository = repository;
+        this.logger = logger;
+        this.statCache = statCache;
+        this.executor = executor;
+    }
+
+    public void setCompareFileKey(boolean compareFileKey) {
+        this.compareFileKey = compareFileKey;
+    }
+
+    /**
+     * 超过这个大小的 .dat 文件不会读入内存解压比较，直接从对象库重新写出。
+     */
+    public void setStreamThreshold(long streamThreshold) {
+        this.streamThreshold = streamThreshold;
+    }
+
+    /**
+     * 提交中是否有 prefix 目录。
+     */
+    public boolean hasTree(RevCommit commit, String prefix) throws IOException {
+        try (TreeWalk treeWalk = TreeWalk.forPath(repository, prefix, commit.getTree())) {
+            return treeWalk != null && treeWalk.isSubtree();
+        }
+    }
+
+    /**
+     * 对比 worldDir 把提交中 prefix 目录写到 restoreRoot 下的暂存目录，不修改世界目录。
+     * 出错时删除这个世界的暂存目录。
+     */
+    public Result stageWorld(RevCommit commit, String prefix, Path worldDir, Path restoreRoot) throws IOException {
+        List<Target> targets = listTargets(commit, prefix);
+        Path staging = restoreRoot.resolve(STAGING_DIR).resolve(prefix);
+        deleteRecursively(staging);
+        Files.createDirectories(staging);
+
+        Result result = new Result();
+        List<Future<?>> pending = new ArrayList<>();
+        for (Target target : targets) {
+            pending.add(executor.submit(() -> {
+                stage(target, worldDir.resolve(target.relativePath), staging.resolve(target.relativePath), result);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            pending.forEach(f -> f.cancel(true));
+            deleteRecursively(staging);
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.forEach(f -> f.cancel(true));
+            deleteRecursively(staging);
+            throw new InterruptedIOException("恢复 '" + prefix + "' 时被中断");
+        }
+        return result;
+    }
+
+    /**
+     * 所有世界暂存完成后调用，把它们移到 ready 目录，下次启动时应用。同一个世界之前暂存的恢复会被替换。
+     */
+    public static void markReady(Path restoreRoot, Collection<String> worldNames) throws IOException {
+        Path ready = restoreRoot.resolve(READY_DIR);
+        Files.createDirectories(ready);
+        for (String worldName : worldNames) {
+            deleteRecursively(ready.resolve(worldName));
+            Files.move(restoreRoot.resolve(STAGING_DIR).resolve(worldName), ready.resolve(worldName),
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * 丢弃尚未完成的暂存，已经在 ready 中的世界不受影响。
+     */
+    public static void discardStaging(Path restoreRoot) throws IOException {
+        deleteRecursively(restoreRoot.resolve(STAGING_DIR));
+    }
+
+    /**
+     * 在服务器加载世界之前调用：把 ready 中的每个世界换成 worldContainer 中的世界目录，
+     * 原来的世界保留为 {@code <世界名>.backup}。没有完成的暂存被删除。返回应用的世界数。
+     */
+    public static int applyPending(Path restoreRoot, Path worldContainer, Logger logger) {
+        if (!Files.isDirectory(restoreRoot)) {
+            return 0;
+        }
+        int count = 0;
+        Path ready = restoreRoot.resolve(READY_DIR);
+        if (Files.isDirectory(ready)) {
+            try (DirectoryStream<Path> worlds = Files.newDirectoryStream(ready)) {
+                for (Path staged : worlds) {
+                    String name = staged.getFileName().toString();
+                    swap(staged, worldContainer.resolve(name), worldContainer.resolve(name + ".backup"));
+                    count++;
+                    logger.info("已将恢复的备份换入世界 '" + name + "'，原来的世界保留为 '" + name + ".backup'");
+                }
+            } catch (IOException e) {
+                logger.severe("应用恢复的备份时出错: " + e.getMessage());
+                e.printStackTrace();
+                return count;
+            }
+        }
+        try {
+            deleteRecursively(restoreRoot);
+        } catch (IOException e) {
+            logger.warning("删除恢复暂存目录时出错: " + e.getMessage());
+        }
+        return count;
+    }
+
+    private List<Target> listTargets(RevCommit commit, String prefix) throws IOException {
+        List<Target> targets = new ArrayList<>();
+        String prefixDir = prefix + "/";
+        try (TreeWalk treeWalk = new TreeWalk(repository)) {
+            treeWalk.addTree(commit.getTree());
+            treeWalk.setRecursive(false);
+            treeWalk.setFilter(PathFilter.create(prefix));
+
+            while (treeWalk.next()) {
+                String path = treeWalk.getPathString();
+                if (treeWalk.isSubtree()) {
+                    if (path.startsWith(prefixDir) && RegionCodec.isRegionTree(treeWalk.getNameString())) {
+                        String treePath = path.substring(0, path.length() - RegionCodec.TREE_SUFFIX.length());
+                        targets.add(new Target(treePath, prefixDir, StatCache.KIND_REGION, treeWalk.getObjectId(0)));
+                    } else {
+                        treeWalk.enterSubtree();
+                    }
+                    continue;
+                }
+
+                FileMode mode = treeWalk.getFileMode(0);
+                if (!path.startsWith(prefixDir)
+                        || (mode != FileMode.REGULAR_FILE && mode != FileMode.EXECUTABLE_FILE)) {
+                    continue;
+                }
+                if (NbtCodec.isNbtBlob(treeWalk.getNameString())) {
+                    String treePath = path.substring(0, path.length() - NbtCodec.BLOB_SUFFIX.length());
+                    targets.add(new Target(treePath, prefixDir, StatCache.KIND_NBT, treeWalk.getObjectId(0)));
+                } else {
+                    targets.add(new Target(path, prefixDir, StatCache.KIND_BLOB, treeWalk.getObjectId(0)));
+                }
+            }
+        }
+        return targets;
+    }
+
+    private void stage(Target target, Path liveFile, Path stagedFile, Result result) throws IOException {
+        Files.createDirectories(stagedFile.getParent());
+        if (isUnchanged(target, liveFile)) {
+            // 不能用硬链接：区域文件是原地写入的，之后对恢复后世界的写入会同时改动保留的原世界
+            Files.copy(liveFile, stagedFile, StandardCopyOption.COPY_ATTRIBUTES);
+            result.unchangedFiles.incrementAndGet();
+            return;
+        }
+
+        if (target.kind == StatCache.KIND_REGION) {
+            // 逐个区块写出，不在内存中组装整个区域文件
+            try (ObjectReader reader = repository.newObjectReader();
+                 FileChannel channel = FileChannel.open(stagedFile, StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                RegionCodec.decode(reader, target.id, channel);
+            }
+        } else {
+            try (ObjectReader reader = repository.newObjectReader();
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(stagedFile))) {
+                ObjectLoader loader = reader.open(target.id, Constants.OBJ_BLOB);
+                if (target.kind == StatCache.KIND_NBT) {
+                    try (InputStream in = loader.openStream()) {
+                        NbtCodec.encode(in, out);
+                    }
+                } else {
+                    loader.copyTo(out);
+                }
+            }
+        }
+        result.writtenFiles.incrementAndGet();
+        result.writtenBytes.addAndGet(Files.size(stagedFile));
+    }
+
+    /**
+     * 当前世界中的文件是否与目标相同：先查状态缓存，没有命中时按存储方式计算对象 ID 比较，不写入对象库。
+     */
+    private boolean isUnchanged(Target target, Path liveFile) throws IOException {
+        if (!Files.isRegularFile(liveFile, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        BasicFileAttributes attrs = Files.readAttributes(liveFile, BasicFileAttributes.class);
+        if (statCache != null && target.id.equals(statCache.lookup(target.treePath, attrs, compareFileKey, target.kind))) {
+            return true;
+        }
+
+        ObjectInserter.Formatter formatter = new IdFormatter();
+        switch (target.kind) {
+            case StatCache.KIND_REGION:
+                try (ObjectReader reader = repository.newObjectReader()) {
+                    // 时间戳和位置都没变的区块直接沿用目标树中的 blob，不需要读取；
+                    // 有区块无法读取时当前文件已损坏，需要恢复
+                    RegionCodec.Stats stats = new RegionCodec.Stats();
+                    return target.id.equals(RegionCodec.encode(liveFile, formatter, reader, target.id, stats))
+                            && stats.getDamagedChunks() == 0;
+                } catch (IOException e) {
+                    return false;
+                }
+            case StatCache.KIND_NBT:
+                if (attrs.size() > streamThreshold) {
+                    return false;
+                }
+                byte[] nbt = NbtCodec.decode(Files.readAllBytes(liveFile), streamThreshold);
+                return nbt != null && target.id.equals(formatter.idFor(Constants.OBJ_BLOB, nbt));
+            default:
+                try (InputStream in = Files.newInputStream(liveFile)) {
+                    return target.id.equals(formatter.idFor(Constants.OBJ_BLOB, attrs.size(), in));
+                }
+        }
+    }
+
+    private static void swap(Path staging, Path worldDir, Path backupDir) throws IOException {
+        deleteRecursively(backupDir);
+        if (Files.exists(worldDir)) {
+            Files.move(worldDir, backupDir, StandardCopyOption.ATOMIC_MOVE);
+        }
+        try {
+            Files.move(staging, worldDir, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // 换入失败时把原来的世界放回去
+            if (Files.exists(backupDir) && !Files.exists(worldDir)) {
+                Files.move(backupDir, worldDir, StandardCopyOption.ATOMIC_MOVE);
+            }
+            throw e;
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * 只计算对象 ID、不写入对象库的插入器，用来按备份时的方式对比区域文件。
+     */
+    private static final class IdFormatter extends ObjectInserter.Formatter {
+        @Override
+        public ObjectId insert(int type, byte[] data, int off, int len) {
+            return idFor(type, data, off, len);
+        }
+
+        @Override
+        public ObjectId insert(int type, long length, InputStream in) throws IOException {
+            return idFor(type, length, in);
+        }
+    }
+
+    private static final class Target {
+        private final String treePath;
+        private final String relativePath;
+        private final byte kind;
+        private final ObjectId id;
+
+        private Target(String treePath, String prefixDir, byte kind, ObjectId id) {
+            this.treePath = treePath;
+            this.relativePath = treePath.substring(prefixDir.length());
+            this.kind = kind;
+            this.id = id.copy();
+        }
+    }
+
+    public static class Result {
+        private final AtomicLong unchangedFiles = new AtomicLong();
+        private final AtomicLong writtenFiles = new AtomicLong();
+        private final AtomicLong writtenBytes = new AtomicLong();
+
+        public long getUnchangedFiles() {
+            return unchangedFiles.get();
+        }
+
+        public long getWrittenFiles() {
+            return writtenFiles.get();
+        }
+
+        public long getWrittenBytes() {
+            return writtenBytes.get();
+        }
+
+        @Override
+        public String toString() {
+            return "写入 " + writtenFiles + " 个文件 (" + BackupDelta.formatBytes(writtenBytes.get()) + "), 未变化 "
+                    + unchangedFiles + " 个";
+        }
+    }
+}
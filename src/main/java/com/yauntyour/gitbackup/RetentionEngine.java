@@ -0,0 +1,177 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 按保留策略重写备份历史：过期的备份被合并进下一个保留的备份，
+ * 保留的备份使用原来的树、作者和提交信息，重新串成一条新的历史。
+ * 之后删除指向被替换提交的 reflog 记录，使它们不再可达，由 gc 回收空间；其它 reflog 记录保留，
+ * gc 之前仍可以用来手动恢复。
+ */
+public class RetentionEngine {
+    private final Repository repository;
+    private final Logger logger;
+    private final RetentionPolicy policy;
+
+    public RetentionEngine(Repository repository, Logger logger, RetentionPolicy policy) {
+        this.repository = repository;
+        this.logger = logger;
+        this.policy = policy;
+    }
+
+    /**
+     * 应用保留策略，返回丢弃的备份数量；没有需要丢弃的备份时不修改仓库。
+     */
+    public int apply(long now, int maxBackups) throws IOException {
+        ObjectId head = repository.resolve(Constants.HEAD);
+        if (head == null) {
+            return 0;
+        }
+
+        try (RevWalk revWalk = new RevWalk(repository);
+             ObjectInserter inserter = repository.newObjectInserter()) {
+            // 备份历史是一条直线；如果有人手动合并过，只沿第一父提交处理
+            revWalk.setFirstParent(true);
+            revWalk.markStart(revWalk.parseCommit(head));
+            List<RevCommit> commits = new ArrayList<>();
+            for (RevCommit commit : revWalk) {
+                commits.add(commit);
+            }
+
+            long[] times = new long[commits.size()];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = commits.get(i).getCommitTime() * 1000L;
+            }
+            boolean[] keep = policy.select(times, now, maxBackups);
+
+            // 从最旧的备份开始，找到第一个被丢弃的位置，在它之前的历史保持不变
+            int firstDropped = -1;
+            for (int i = commits.size() - 1; i >= 0; i--) {
+                if (!keep[i]) {
+                    firstDropped = i;
+                    break;
+                }
+            }
+            if (firstDropped < 0) {
+                return 0;
+            }
+
+            ObjectId parent = null;
+            for (int i = firstDropped + 1; i < commits.size(); i++) {
+                if (keep[i]) {
+                    parent = commits.get(i);
+                    break;
+                }
+            }
+
+            // 从 firstDropped 开始的提交都会被丢弃或换成新的提交
+            Set<ObjectId> replaced = new HashSet<>();
+            int dropped = 0;
+            for (int i = firstDropped; i >= 0; i--) {
+                replaced.add(commits.get(i).copy());
+                if (!keep[i]) {
+                    dropped++;
+                    continue;
+                }
+                RevCommit commit = commits.get(i);
+                CommitBuilder builder = new CommitBuilder();
+                builder.setTreeId(commit.getTree());
+                if (parent != null) {
+                    builder.setParentId(parent);
+                }
+                builder.setAuthor(commit.getAuthorIdent());
+                builder.setCommitter(commit.getCommitterIdent());
+                builder.setEncoding(commit.getEncoding());
+                builder.setMessage(commit.getFullMessage());
+                parent = inserter.insert(builder);
+            }
+            inserter.flush();
+
+            updateHead(parent, head);
+            expireReflogs(replaced);
+            logger.info("保留策略: 保留 " + (commits.size() - dropped) + " 个备份，合并了 " + dropped + " 个过期备份");
+            logger.info("重写前的 HEAD 为 " + head.name() + "，gc 清理不可达对象之前可以用它手动恢复");
+            return dropped;
+        }
+    }
+
+    private void updateHead(ObjectId newHead, ObjectId oldHead) throws IOException {
+        RefUpdate refUpdate = repository.updateRef(Constants.HEAD);
+        refUpdate.setNewObjectId(newHead);
+        refUpdate.setExpectedOldObjectId(oldHead);
+        refUpdate.setForceUpdate(true);
+        refUpdate.disableRefLog();
+
+        RefUpdate.Result result = refUpdate.update();
+        switch (result) {
+            case FORCED:
+            case FAST_FORWARD:
+            case NO_CHANGE:
+                return;
+            default:
+                throw new IOException("重写历史时更新 HEAD 失败: " + result);
+        }
+    }
+
+    /**
+     * reflog 会让旧提交一直可达：删除新旧值指向被替换提交的记录，其它记录原样保留。
+     */
+    private void expireReflogs(Set<ObjectId> replaced) throws IOException {
+        Path logs = repository.getDirectory().toPath().resolve(Constants.LOGS);
+        if (!Files.isDirectory(logs)) {
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(logs)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            List<String> kept = new ArrayList<>(lines.size());
+            for (String line : lines) {
+                if (!pointsInto(line, replaced)) {
+                    kept.add(line);
+                }
+            }
+            if (kept.size() == lines.size()) {
+                continue;
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, kept, StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * reflog 每行以 "旧值 新值 " 开头，两个都是 40 位十六进制的提交 ID。
+     */
+    private static boolean pointsInto(String line, Set<ObjectId> replaced) {
+        int length = Constants.OBJECT_ID_STRING_LENGTH;
+        if (line.length() < length * 2 + 1) {
+            return false;
+        }
+        String oldId = line.substring(0, length);
+        String newId = line.substring(length + 1, length * 2 + 1);
+        return (ObjectId.isId(oldId) && replaced.contains(ObjectId.fromString(oldId)))
+                || (ObjectId.isId(newId) && replaced.contains(ObjectId.fromString(newId)));
+    }
+}
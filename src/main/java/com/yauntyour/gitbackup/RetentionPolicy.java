@@ -0,0 +1,135 @@
+package com.yauntyour.gitbackup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.logging.Logger;
+
+/**
+ * 祖父-父-子（GFS）保留策略：每条规则写作 "<时长>:<间隔>"，
+ * 表示在该时长内每个间隔只保留最新的一个备份，间隔为 all 时全部保留。
+ * 例如 "24h:all", "7d:1h", "30d:1d", "forever:1w"。
+ */
+public class RetentionPolicy {
+    private static final long FOREVER = Long.MAX_VALUE;
+
+    private final List<Rule> rules;
+
+    private RetentionPolicy(List<Rule> rules) {
+        this.rules = rules;
+    }
+
+    public static RetentionPolicy parse(List<String> specs, Logger logger) {
+        List<Rule> rules = new ArrayList<>();
+        for (String spec : specs) {
+            String[] parts = spec.trim().toLowerCase(Locale.ROOT).split(":");
+            long maxAge = parts.length == 2 ? parseDuration(parts[0]) : -1;
+            long interval = parts.length == 2 ? parseDuration(parts[1]) : -1;
+            if (maxAge <= 0 || interval < 0 || interval == FOREVER) {
+                logger.warning("无效的保留规则: " + spec);
+                continue;
+            }
+            rules.add(new Rule(maxAge, interval));
+        }
+        // 按时长从短到长匹配，第一条覆盖备份年龄的规则生效
+        rules.sort((a, b) -> Long.compare(a.maxAge, b.maxAge));
+        return new RetentionPolicy(rules);
+    }
+
+    /**
+     * 解析 "30m"、"24h"、"7d"、"2w"、"forever" 和 "all"，返回毫秒数；"all" 返回 0。
+     */
+    static long parseDuration(String text) {
+        if (text.equals("all")) {
+            return 0;
+        }
+        if (text.equals("forever")) {
+            return FOREVER;
+        }
+        if (text.length() < 2) {
+            return -1;
+        }
+        long unit;
+        switch (text.charAt(text.length() - 1)) {
+            case 'm':
+                unit = 60_000L;
+                break;
+            case 'h':
+                unit = 3_600_000L;
+                break;
+            case 'd':
+                unit = 86_400_000L;
+                break;
+            case 'w':
+                unit = 7 * 86_400_000L;
+                break;
+            default:
+                return -1;
+        }
+        try {
+            long value = Long.parseLong(text.substring(0, text.length() - 1));
+            return value > 0 ? value * unit : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * 按提交时间（毫秒，从新到旧排列）计算每个备份是否保留。
+     * 最新的备份总是保留；maxBackups 大于 0 时再截掉超出数量的最旧备份。
+     * 没有任何规则时只按 maxBackups 保留。
+     */
+    public boolean[] select(long[] commitTimes, long now, int maxBackups) {
+        boolean[] keep = new boolean[commitTimes.length];
+        // 间隔按本地时区对齐，"每天"指的是本地的自然日
+        long offset = TimeZone.getDefault().getOffset(now);
+        List<Set<Long>> seenBuckets = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            seenBuckets.add(new HashSet<>());
+        }
+
+        int kept = 0;
+        for (int i = 0; i < commitTimes.length; i++) {
+            if (i == 0 || rules.isEmpty()) {
+                keep[i] = true;
+            } else {
+                long age = Math.max(0, now - commitTimes[i]);
+                for (int r = 0; r < rules.size(); r++) {
+                    Rule rule = rules.get(r);
+                    if (rule.maxAge != FOREVER && age > rule.maxAge) {
+                        continue;
+                    }
+                    // 区间边界固定，每个区间保留最新的一个，已保留的备份变老后仍是所在区间的代表
+                    keep[i] = rule.interval == 0
+                            || seenBuckets.get(r).add(Math.floorDiv(commitTimes[i] + offset, rule.interval));
+                    break;
+                }
+            }
+            if (keep[i]) {
+                if (maxBackups > 0 && kept >= maxBackups) {
+                    keep[i] = false;
+                } else {
+                    kept++;
+                }
+            }
+        }
+        return keep;
+    }
+
+    private static final class Rule {
+        private final long maxAge;
+        private final long interval;
+
+        private Rule(long maxAge, long interval) {
+            this.maxAge = maxAge;
+            this.interval = interval;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.PackInserter;
+import org.eclipse.jgit.lib.AbbreviatedObjectId;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.util.IO;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * 一次备份共用的对象写入器：本次备份的所有新对象顺序写入同一个 pack 文件，flush 时写出 pack 索引，
+ * 不再为每个对象创建一个松散对象文件。
+ * <p>
+ * JGit 的 PackInserter 不是线程安全的，这里所有写入和读取都在同一个锁内进行；
+ * 不超过 bufferLimit 的数据在锁外读入内存，只有压缩和写入是串行的。
+ * 超过 bufferLimit 的数据流不进入共用的 pack，而是由单独的写入器流式写入各自的 pack 并立即安装到对象库，
+ * 读取大文件时不占用锁，其它扫描线程不会排在它后面。
+ * close 不做任何事，扫描线程可以照常用 try-with-resources 使用；
+ * 创建者在提交前调用 flush，结束或失败时调用 {@link #release()}。
+ */
+public class SharedPackInserter extends ObjectInserter {
+    private final ObjectDirectory objectDirectory;
+    private final PackInserter packInserter;
+    private final int compression;
+    private final long bufferLimit;
+    private volatile boolean released;
+
+    private SharedPackInserter(ObjectDirectory objectDirectory, int compression, long bufferLimit) {
+        this.objectDirectory = objectDirectory;
+        this.compression = compression;
+        this.packInserter = newPackInserter();
+        this.bufferLimit = Math.min(bufferLimit, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * compression 为 zlib 压缩级别（0-9）。仓库不是本地文件仓库时返回 null，调用者应使用普通的写入器。
+     */
+    public static SharedPackInserter open(Repository repository, int compression, long bufferLimit) {
+        if (!(repository.getObjectDatabase() instanceof ObjectDirectory objectDirectory)) {
+            return null;
+        }
+        return new SharedPackInserter(objectDirectory, Math.max(0, Math.min(9, compression)), bufferLimit);
+    }
+
+    private PackInserter newPackInserter() {
+        PackInserter inserter = objectDirectory.newPackInserter();
+        inserter.setCompressionLevel(compression);
+        // 对象库中已有的对象不再写入
+        inserter.checkExisting(true);
+        return inserter;
+    }
+
+    @Override
+    public synchronized ObjectId insert(int type, byte[] data, int off, int len) throws IOException {
+        ensureOpen();
+        return packInserter.insert(type, data, off, len);
+    }
+
+    @Override
+    public ObjectId insert(int type, long length, InputStream in) throws IOException {
+        if (length <= bufferLimit) {
+            // 在锁外读取，其它线程可以同时写入
+            byte[] data = new byte[(int) length];
+            IO.readFully(in, data, 0, data.length);
+            return insert(type, data, 0, data.length);
+        }
+        // 大对象写入单独的 pack，flush 后立即可见。备份被丢弃时这些对象留在对象库中，由仓库维护清理
+        ensureOpen();
+        try (PackInserter inserter = newPackInserter()) {
+            ObjectId id = inserter.insert(type, length, in);
+            inserter.flush();
+            return id;
+        }
+    }
+
+    @Override
+    public synchronized PackParser newPackParser(InputStream in) throws IOException {
+        ensureOpen();
+        return packInserter.newPackParser(in);
+    }
+
+    /**
+     * 可以读取本次尚未写出的对象。正在写入的 pack 中的对象在锁内完整读取，返回的 loader 不会再访问这个 pack。
+     */
+    @Override
+    public synchronized ObjectReader newReader() {
+        return new LockedReader(packInserter.newReader());
+    }
+
+    /**
+     * 写出 pack 和索引，之后的对象写入新的 pack。
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        packInserter.flush();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * 释放资源，尚未 flush 的对象被丢弃。之后的写入会失败。
+     */
+    public synchronized void release() {
+        released = true;
+        packInserter.close();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (released) {
+            throw new IOException("本次备份已结束，不能再写入对象");
+        }
+    }
+
+    private class LockedReader extends ObjectReader {
+        private final ObjectReader delegate;
+
+        private LockedReader(ObjectReader delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public ObjectReader newReader() {
+            return SharedPackInserter.this.newReader();
+        }
+
+        @Override
+        public ObjectInserter getCreatedFromInserter() {
+            return SharedPackInserter.this;
+        }
+
+        @Override
+        public Collection<ObjectId> resolve(AbbreviatedObjectId id) throws IOException {
+            synchronized (SharedPackInserter.this) {
+                return delegate.resolve(id);
+            }
+        }
+
+        @Override
+        public ObjectLoader open(AnyObjectId objectId, int typeHint) throws IOException {
+            synchronized (SharedPackInserter.this) {
+                ObjectLoader loader = delegate.open(objectId, typeHint);
+                if (!loader.isLarge() || objectDirectory.has(objectId)) {
+                    return loader;
+                }
+                // 尚未写出的大对象以流的方式读取时会在锁外访问正在写入的 pack，这里直接读入内存。
+                // 共用 pack 中只有调用者已经放在内存中的数据，大小有上限
+                return new ObjectLoader.SmallObject(loader.getType(), loader.getCachedBytes(Integer.MAX_VALUE));
+            }
+        }
+
+        @Override
+        public Set<ObjectId> getShallowCommits() throws IOException {
+            return delegate.getShallowCommits();
+        }
+
+        @Override
+        public void close() {
+            synchronized (SharedPackInserter.this) {
+                delegate.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.yauntyour.gitbackup;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * 在世界目录旁边建立一个暂存快照，之后的备份阶段只读取快照，不再受服务器写入影响。
+ * 快照在后台线程中建立，期间世界暂停自动保存。reflink（写时复制）和硬链接通常只需要很短的时间；
+ * 文件系统是否支持 reflink 只检测一次，不支持时直接退回到增量复制。
+ */
+public class SnapshotStager {
+    public enum Mode {
+        OFF, AUTO, REFLINK, HARDLINK, COPY;
+
+        public static Mode parse(String value) {
+            try {
+                return Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException | NullPointerException e) {
+                return OFF;
+            }
+        }
+    }
+
+    private static final String STAGING_DIR = ".gitbackup-staging";
+    private static final long PROBE_TIMEOUT_SECONDS = 5;
+    private static final long REFLINK_TIMEOUT_SECONDS = 60;
+
+    private final Logger logger;
+    private volatile Boolean reflinkSupported;
+    private volatile boolean hardlinkUnsupported;
+
+    public SnapshotStager(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * 暂存目录与世界目录在同一文件系统上，硬链接和 reflink 才能生效。
+     */
+    public Path getStagingDir(String worldName, Path worldFolder) {
+        return getStagingRoot(worldFolder.toAbsolutePath().getParent()).resolve(worldName);
+    }
+
+    /**
+     * worldContainer 下所有世界共用的暂存目录。
+     */
+    public Path getStagingRoot(Path worldContainer) {
+        return worldContainer.toAbsolutePath().resolve(STAGING_DIR);
+    }
+
+    /**
+     * 在 stagingRoot 中复制一个小文件，检查文件系统是否支持 reflink。结果会被缓存，只有第一次调用会启动子进程；
+     * 插件启动时在后台调用，备份时通常已经有结果。
+     */
+    public synchronized boolean isReflinkSupported(Path stagingRoot) {
+        if (reflinkSupported != null) {
+            return reflinkSupported;
+        }
+        boolean supported = false;
+        Path source = null;
+        Path target = null;
+        try {
+            Files.createDirectories(stagingRoot);
+            source = Files.createTempFile(stagingRoot, "reflink-probe", null);
+            target = source.resolveSibling(source.getFileName() + ".copy");
+            supported = copyReflink(source, target, PROBE_TIMEOUT_SECONDS);
+        } catch (IOException e) {
+            logger.warning("检测 reflink 支持时出错: " + e.getMessage());
+        } finally {
+            deleteQuietly(source);
+            deleteQuietly(target);
+        }
+        if (!supported) {
+            logger.info("文件系统不支持 reflink，快照将使用其他方式");
+        }
+        reflinkSupported = supported;
+        return supported;
+    }
+
+    /**
+     * 尝试用 reflink 或硬链接建立快照，返回实际使用的方式；都不可用时返回 COPY，
+     * 调用者应改用 {@link #stageCopy}。会启动子进程，不能在主线程调用。
+     */
+    public Mode stageLinks(String worldName, Path worldFolder, Mode mode, ExcludeFilter excludeFilter)
+            throws IOException {
+        Path staging = getStagingDir(worldName, worldFolder);
+
+        if ((mode == Mode.AUTO || mode == Mode.REFLINK) && isReflinkSupported(staging.getParent())) {
+            if (reflink(worldFolder, staging)) {
+                return Mode.REFLINK;
+            }
+            reflinkSupported = false;
+            logger.warning("reflink 复制失败，快照将改用" + (mode == Mode.AUTO ? "增量复制" : "其他方式"));
+        }
+
+        // 区域文件是原地写入的，硬链接和世界共享数据，只在明确配置时使用
+        if (mode == Mode.HARDLINK && !hardlinkUnsupported) {
+            if (hardlink(worldName, worldFolder, staging, excludeFilter)) {
+                return Mode.HARDLINK;
+            }
+            hardlinkUnsupported = true;
+            logger.warning("无法创建硬链接，快照将改用增量复制");
+        }
+
+        return Mode.COPY;
+    }
+
+    /**
+     * 增量复制到暂存目录。暂存目录会保留到下一次备份，所以只需要复制有变化的文件。
+     */
+    public WorldMirror.Result stageCopy(String worldName, Path worldFolder, ExcludeFilter excludeFilter,
+                                        IoThrottle throttle) throws IOException {
+        WorldMirror mirror = new WorldMirror(logger, excludeFilter, false);
+        mirror.setThrottle(throttle);
+        return mirror.sync(worldFolder, getStagingDir(worldName, worldFolder), worldName);
+    }
+
+    /**
+     * 备份读取完快照后调用。链接方式建立的快照会被删除，避免写时复制的块长期占用空间；
+     * 增量复制的快照保留下来供下次使用。
+     */
+    public void release(String worldName, Path worldFolder, Mode used) {
+        if (used != Mode.REFLINK && used != Mode.HARDLINK) {
+            return;
+        }
+        try {
+            deleteRecursively(getStagingDir(worldName, worldFolder));
+        } catch (IOException e) {
+            logger.warning("删除快照目录时出错: " + e.getMessage());
+        }
+    }
+
+    private boolean reflink(Path source, Path staging) throws IOException {
+        deleteRecursively(staging);
+        Files.createDirectories(staging.getParent());
+        if (copyReflink(source, staging, REFLINK_TIMEOUT_SECONDS)) {
+            return true;
+        }
+        deleteRecursively(staging);
+        return false;
+    }
+
+    /**
+     * 用 cp --reflink=always 复制，超时或失败时返回 false。系统没有 cp 命令时同样返回 false。
+     */
+    private static boolean copyReflink(Path source, Path target, long timeoutSeconds) {
+        Process process;
+        try {
+            process = new ProcessBuilder("cp", "-a", "--reflink=always",
+                    source.toAbsolutePath().toString(), target.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+        } catch (IOException e) {
+            return false;
+        }
+        try {
+            // 输出直接丢弃，超时不会被读取输出阻塞
+            return process.waitFor(timeoutSeconds, TimeUnit.SECONDS) && process.exitValue() == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            process.destroy();
+        }
+    }
+
+    private boolean hardlink(String worldName, Path source, Path staging, ExcludeFilter excludeFilter)
+            throws IOException {
+        deleteRecursively(staging);
+        Path prefix = Path.of(worldName);
+        try {
+            Files.walkFileTree(source, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Path relative = source.relativize(dir);
+                    if (!relative.toString().isEmpty() && excludeFilter.isExcluded(prefix.resolve(relative))) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    Files.createDirectories(staging.resolve(relative.toString()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Path relative = source.relativize(file);
+                    if (attrs.isRegularFile() && !excludeFilter.isExcluded(prefix.resolve(relative))) {
+                        Files.createLink(staging.resolve(relative.toString()), file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.warning("创建硬链接时出错: " + e.getMessage());
+            deleteRecursively(staging);
+            return false;
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,267 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * 持久化的文件状态缓存：树路径 -> (大小, 修改时间, inode, blob ObjectId)。
+ * 状态完全一致的文件直接复用上次的 blob，不需要再打开和计算哈希。
+ */
+public class StatCache {
+    private static final int MAGIC = 0x47425343; // "GBSC"
+    private static final int VERSION = 2;
+    // 缓存的对象是普通文件的 blob，还是区域文件编码后的区块树
+    public static final byte KIND_BLOB = 0;
+    public static final byte KIND_REGION = 1;
+    // 解压后存储的 NBT 文件，blob 位于 <路径>.nbt
+    public static final byte KIND_NBT = 2;
+    // 修改时间离扫描时刻太近的文件可能在同一时间片内再次被写入，不缓存
+    private static final long RACY_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final File file;
+    private final Logger logger;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Map<String, Entry>> pending = new ConcurrentHashMap<>();
+    private ObjectId headId;
+
+    private StatCache(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    /**
+     * 从磁盘加载缓存。缓存记录的 HEAD 与仓库当前 HEAD 不一致时（仓库被外部修改过）丢弃缓存。
+     */
+    public static StatCache load(File file, ObjectId currentHead, Logger logger) {
+        StatCache cache = new StatCache(file, logger);
+        if (!file.exists()) {
+            return cache;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warning("状态缓存格式不兼容，将重新建立");
+                return cache;
+            }
+            ObjectId storedHead = in.readBoolean() ? ObjectId.fromRaw(readRaw(in)) : null;
+            if (storedHead == null ? currentHead != null : !storedHead.equals(currentHead)) {
+                logger.info("仓库 HEAD 已变化，状态缓存将重新建立");
+                return cache;
+            }
+            cache.headId = storedHead;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                String fileKey = in.readUTF();
+                byte kind = in.readByte();
+                ObjectId id = ObjectId.fromRaw(readRaw(in));
+                cache.entries.put(path, new Entry(size, modified, fileKey, kind, id));
+            }
+            logger.info("已加载状态缓存: " + count + " 个文件");
+        } catch (IOException e) {
+            logger.warning("读取状态缓存时出错，将重新建立: " + e.getMessage());
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    private static byte[] readRaw(DataInputStream in) throws IOException {
+        byte[] raw = new byte[20];
+        in.readFully(raw);
+        return raw;
+    }
+
+    /**
+     * 文件状态与缓存完全一致且存储方式相同时返回缓存的对象，否则返回 null。
+     * 快照目录中的文件每次都是新的 inode，此时 compareFileKey 应为 false。
+     */
+    public synchronized ObjectId lookup(String path, BasicFileAttributes attrs, boolean compareFileKey, byte kind) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.kind != kind || !entry.matches(attrs, compareFileKey)) {
+            return null;
+        }
+        return entry.id;
+    }
+
+    /**
+     * 不比较文件状态，返回上一次备份中该路径对应的对象（用于区块级增量），没有时返回 null。
+     */
+    public synchronized ObjectId previous(String path, byte kind) {
+        Entry entry = entries.get(path);
+        return entry != null && entry.kind == kind ? entry.id : null;
+    }
+
+    /**
+     * 记录一次扫描得到的结果，commit 之后才会生效。
+     */
+    public void stage(String prefix, String path, BasicFileAttributes attrs, boolean compareFileKey, byte kind,
+                      ObjectId id) {
+        long modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        if (now - modified < RACY_WINDOW_NANOS) {
+            return;
+        }
+        pending.computeIfAbsent(prefix, p -> new ConcurrentHashMap<>())
+                .put(path, new Entry(attrs.size(), modified, compareFileKey ? fileKey(attrs) : "", kind, id));
+    }
+
+    /**
+     * 本次扫描没有查看但确定未变化的文件（见 {@link DirtyRegionTracker}）沿用已有的条目。
+     */
+    public synchronized void keep(String prefix, String path) {
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            pending.computeIfAbsent(prefix, p -> new ConcurrentHashMap<>()).put(path, entry);
+        }
+    }
+
+    /**
+     * 删除 prefix 下这些路径（及其下级路径）的条目，文件已变化时调用。
+     */
+    public synchronized void forget(String prefix, Collection<String> paths) {
+        Set<String> removed = new HashSet<>();
+        for (String path : paths) {
+            removed.add(prefix + "/" + path);
+        }
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            String path = it.next();
+            if (!path.startsWith(prefix + "/")) {
+                continue;
+            }
+            for (int slash = path.length(); slash > prefix.length(); slash = path.lastIndexOf('/', slash - 1)) {
+                if (removed.contains(path.substring(0, slash))) {
+                    it.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 提交成功后调用：用本次扫描的结果替换对应前缀下的旧条目并写回磁盘。
+     */
+    public synchronized void commit(ObjectId newHead) {
+        for (Map.Entry<String, Map<String, Entry>> scanned : pending.entrySet()) {
+            String prefix = scanned.getKey() + "/";
+            Iterator<String> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+            entries.putAll(scanned.getValue());
+        }
+        pending.clear();
+        headId = newHead;
+
+        try {
+            save();
+        } catch (IOException e) {
+            logger.warning("保存状态缓存时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 历史被重写但 HEAD 的树不变时调用：缓存的 blob 仍然可达，只需要更新记录的 HEAD。
+     */
+    public synchronized void updateHead(ObjectId newHead) {
+        headId = newHead;
+
+        try {
+            save();
+        } catch (IOException e) {
+            logger.warning("保存状态缓存时出错: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 提交失败时丢弃本次扫描的结果。
+     */
+    public void discard() {
+        pending.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void save() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(headId != null);
+            if (headId != null) {
+                byte[] raw = new byte[20];
+                headId.copyRawTo(raw, 0);
+                out.write(raw);
+            }
+            out.writeInt(entries.size());
+            byte[] raw = new byte[20];
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeUTF(entry.fileKey);
+                out.writeByte(entry.kind);
+                entry.id.copyRawTo(raw, 0);
+                out.write(raw);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String fileKey(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return key != null ? key.toString() : "";
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long modified;
+        private final String fileKey;
+        private final byte kind;
+        private final ObjectId id;
+
+        private Entry(long size, long modified, String fileKey, byte kind, ObjectId id) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.kind = kind;
+            this.id = id;
+        }
+
+        private boolean matches(BasicFileAttributes attrs, boolean compareFileKey) {
+            return size == attrs.size()
+                    && modified == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                    && (!compareFileKey || fileKey.equals(StatCache.fileKey(attrs)));
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.transport.http.HttpConnection;
+import org.eclipse.jgit.transport.http.HttpConnectionFactory;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.TrustManager;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.URL;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 包装 JGit 的 HTTP 连接工厂，上传的请求体经过 RateLimiter（推送限速）和 IoThrottle（按服务器负载限速）。
+ * JGit 已被重定位到插件内部，替换全局工厂不会影响其他插件。
+ */
+public class ThrottledHttpConnectionFactory implements HttpConnectionFactory {
+    private static final int CHUNK_BYTES = 8192;
+
+    private final HttpConnectionFactory delegate;
+    private final RateLimiter rateLimiter;
+    private final IoThrottle throttle;
+    private final LongAdder uploadedBytes = new LongAdder();
+
+    public ThrottledHttpConnectionFactory(HttpConnectionFactory delegate, RateLimiter rateLimiter,
+                                          IoThrottle throttle) {
+        this.delegate = delegate;
+        this.rateLimiter = rateLimiter;
+        this.throttle = throttle;
+    }
+
+    /**
+     * 经过这个工厂上传的总字节数。
+     */
+    public long getUploadedBytes() {
+        return uploadedBytes.sum();
+    }
+
+    @Override
+    public HttpConnection create(URL url) throws IOException {
+        return new ThrottledConnection(delegate.create(url));
+    }
+
+    @Override
+    public HttpConnection create(URL url, Proxy proxy) throws IOException {
+        return new ThrottledConnection(delegate.create(url, proxy));
+    }
+
+    private class ThrottledConnection implements HttpConnection {
+        private final HttpConnection connection;
+
+        private ThrottledConnection(HttpConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return new FilterOutputStream(connection.getOutputStream()) {
+                @Override
+                public void write(int b) throws IOException {
+                    rateLimiter.acquire(1);
+                    throttle.acquire(1);
+                    out.write(b);
+                    uploadedBytes.increment();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    // 分块取令牌，避免一次大写入造成突发流量
+                    while (len > 0) {
+                        int n = Math.min(len, CHUNK_BYTES);
+                        rateLimiter.acquire(n);
+                        throttle.acquire(n);
+                        out.write(b, off, n);
+                        uploadedBytes.add(n);
+                        off += n;
+                        len -= n;
+                    }
+                }
+            };
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return connection.getResponseCode();
+        }
+
+        @Override
+        public URL getURL() {
+            return connection.getURL();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            return connection.getResponseMessage();
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return connection.getHeaderFields();
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            connection.setRequestProperty(key, value);
+        }
+
+        @Override
+        public void setRequestMethod(String method) throws ProtocolException {
+            connection.setRequestMethod(method);
+        }
+
+        @Override
+        public void setUseCaches(boolean useCaches) {
+            connection.setUseCaches(useCaches);
+        }
+
+        @Override
+        public void setConnectTimeout(int timeout) {
+            connection.setConnectTimeout(timeout);
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            connection.setReadTimeout(timeout);
+        }
+
+        @Override
+        public String getContentType() {
+            return connection.getContentType();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return connection.getInputStream();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public List<String> getHeaderFields(String name) {
+            return connection.getHeaderFields(name);
+        }
+
+        @Override
+        public int getContentLength() {
+            return connection.getContentLength();
+        }
+
+        @Override
+        public void setInstanceFollowRedirects(boolean followRedirects) {
+            connection.setInstanceFollowRedirects(followRedirects);
+        }
+
+        @Override
+        public void setDoOutput(boolean doOutput) {
+            connection.setDoOutput(doOutput);
+        }
+
+        @Override
+        public void setFixedLengthStreamingMode(int contentLength) {
+            connection.setFixedLengthStreamingMode(contentLength);
+        }
+
+        @Override
+        public void setChunkedStreamingMode(int chunkLength) {
+            connection.setChunkedStreamingMode(chunkLength);
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return connection.getRequestMethod();
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return connection.usingProxy();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            connection.connect();
+        }
+
+        @Override
+        public void configure(KeyManager[] km, TrustManager[] tm, SecureRandom random)
+                throws NoSuchAlgorithmException, KeyManagementException {
+            connection.configure(km, tm, random);
+        }
+
+        @Override
+        public void setHostnameVerifier(HostnameVerifier hostnameVerifier)
+                throws NoSuchAlgorithmException, KeyManagementException {
+            connection.setHostnameVerifier(hostnameVerifier);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.yauntyour.gitbackup;
+
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * 在主线程每个 tick 运行一次，测量相邻两次运行的间隔（服务器正常时为 50 ms，卡顿时变长），
+ * 每 20 个 tick 把平均间隔交给 IoThrottle 调整备份的读写速度。
+ */
+public class TickMonitor {
+    private static final int WINDOW_TICKS = 20;
+
+    private final JavaPlugin plugin;
+    private final IoThrottle throttle;
+    private BukkitTask task;
+
+    public TickMonitor(JavaPlugin plugin, IoThrottle throttle) {
+        this.plugin = plugin;
+        this.throttle = throttle;
+    }
+
+    public void start() {
+        stop();
+        task = new BukkitRunnable() {
+            private long last = System.nanoTime();
+            private long windowNanos;
+            private int ticks;
+
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                windowNanos += now - last;
+                last = now;
+                if (++ticks < WINDOW_TICKS) {
+                    return;
+                }
+                throttle.adjust(windowNanos / 1e6 / ticks);
+                windowNanos = 0;
+                ticks = 0;
+            }
+        }.runTaskTimer(plugin, 1L, 1L);
+    }
+
+    public void stop() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+            throttle.reset();
+        }
+    }
+
+    public boolean isRunning() {
+        return task != null;
+    }
+}
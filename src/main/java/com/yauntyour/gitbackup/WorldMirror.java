@@ -0,0 +1,188 @@
+package com.yauntyour.gitbackup;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Logger;
+
+/**
+ * 增量镜像：只复制大小/修改时间（可选内容）发生变化的文件，删除源中已不存在的文件，
+ * 并保留修改时间，这样 JGit 的索引不会因为新的 mtime 而重新计算所有文件的哈希。
+ */
+public class WorldMirror {
+    private final Logger logger;
+    private final ExcludeFilter excludeFilter;
+    private final boolean compareContent;
+    private IoThrottle throttle;
+
+    public WorldMirror(Logger logger, ExcludeFilter excludeFilter, boolean compareContent) {
+        this.logger = logger;
+        this.excludeFilter = excludeFilter;
+        this.compareContent = compareContent;
+    }
+
+    /**
+     * 复制文件时使用的限速，null 表示不限速。
+     */
+    public void setThrottle(IoThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * 将 source 同步到 target。prefix 是 target 在备份仓库中的相对路径，用于匹配排除规则。
+     */
+    public Result sync(Path source, Path target, String prefix) throws IOException {
+        Result result = new Result();
+        Path prefixPath = Path.of(prefix);
+
+        Files.createDirectories(target);
+
+        // 第一遍：遍历源目录，跳过排除项，只复制有变化的文件
+        Files.walkFileTree(source, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path relative = source.relativize(dir);
+                if (!relative.toString().isEmpty() && excludeFilter.isExcluded(prefixPath.resolve(relative))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Path targetDir = target.resolve(relative.toString());
+                if (!Files.isDirectory(targetDir, LinkOption.NOFOLLOW_LINKS)) {
+                    if (Files.exists(targetDir, LinkOption.NOFOLLOW_LINKS)) {
+                        Files.delete(targetDir);
+                    }
+                    Files.createDirectories(targetDir);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                Path relative = source.relativize(file);
+                if (excludeFilter.isExcluded(prefixPath.resolve(relative))) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path targetFile = target.resolve(relative.toString());
+                try {
+                    if (isUpToDate(file, attrs, targetFile)) {
+                        result.unchangedFiles++;
+                    } else {
+                        if (Files.isDirectory(targetFile, LinkOption.NOFOLLOW_LINKS)) {
+                            deleteRecursively(targetFile, result);
+                        }
+                        if (throttle != null) {
+                            throttle.copy(file, targetFile);
+                        } else {
+                            Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING,
+                                    StandardCopyOption.COPY_ATTRIBUTES);
+                        }
+                        result.copiedFiles++;
+                        result.copiedBytes += attrs.size();
+                    }
+                } catch (IOException e) {
+                    logger.severe("复制文件时出错: " + e.getMessage());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                logger.warning("无法读取文件 " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // 第二遍：删除源中已不存在或已被排除的文件
+        Files.walkFileTree(target, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path relative = target.relativize(dir);
+                if (relative.toString().isEmpty()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (!Files.isDirectory(source.resolve(relative.toString()))
+                        || excludeFilter.isExcluded(prefixPath.resolve(relative))) {
+                    deleteRecursively(dir, result);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path relative = target.relativize(file);
+                if (!Files.exists(source.resolve(relative.toString()))
+                        || excludeFilter.isExcluded(prefixPath.resolve(relative))) {
+                    Files.delete(file);
+                    result.deletedFiles++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return result;
+    }
+
+    private boolean isUpToDate(Path source, BasicFileAttributes sourceAttrs, Path target) throws IOException {
+        if (!Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS)) {
+            return false;
+        }
+        // 只比较到毫秒，部分文件系统复制属性时会丢失纳秒精度
+        BasicFileAttributes targetAttrs = Files.readAttributes(target, BasicFileAttributes.class);
+        if (targetAttrs.size() != sourceAttrs.size()
+                || targetAttrs.lastModifiedTime().toMillis() != sourceAttrs.lastModifiedTime().toMillis()) {
+            return false;
+        }
+        return !compareContent || Files.mismatch(source, target) == -1L;
+    }
+
+    private void deleteRecursively(Path path, Result result) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                result.deletedFiles++;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    public static class Result {
+        private long copiedFiles;
+        private long copiedBytes;
+        private long deletedFiles;
+        private long unchangedFiles;
+
+        public long getCopiedFiles() {
+            return copiedFiles;
+        }
+
+        public long getCopiedBytes() {
+            return copiedBytes;
+        }
+
+        public long getDeletedFiles() {
+            return deletedFiles;
+        }
+
+        public long getUnchangedFiles() {
+            return unchangedFiles;
+        }
+
+        @Override
+        public String toString() {
+            return "复制 " + copiedFiles + " 个文件 (" + copiedBytes + " 字节), 删除 " + deletedFiles
+                    + " 个, 未变化 " + unchangedFiles + " 个";
+        }
+    }
+}
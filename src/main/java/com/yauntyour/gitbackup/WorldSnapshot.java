@@ -0,0 +1,46 @@
+package com.yauntyour.gitbackup;
+
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 单个世界在一次备份中的准备结果。direct 引擎下包含扫描得到的索引条目、
+ * 按区域文件编码得到的子树（树路径 -> 树 ObjectId），
+ * 以及由它们单独构建出的世界子树；worktree 引擎下世界已同步到工作区，entries 为 null。
+ */
+public class WorldSnapshot {
+    private final String worldName;
+    private final List<DirCacheEntry> entries;
+    private final Map<String, ObjectId> subtrees;
+    private final ObjectId treeId;
+
+    public WorldSnapshot(String worldName, List<DirCacheEntry> entries, Map<String, ObjectId> subtrees,
+                         ObjectId treeId) {
+        this.worldName = worldName;
+        this.entries = entries;
+        this.subtrees = subtrees;
+        this.treeId = treeId;
+    }
+
+    public String getWorldName() {
+        return worldName;
+    }
+
+    public List<DirCacheEntry> getEntries() {
+        return entries;
+    }
+
+    public Map<String, ObjectId> getSubtrees() {
+        return subtrees;
+    }
+
+    /**
+     * 世界目录对应的树，世界为空或使用 worktree 引擎时为 null。
+     */
+    public ObjectId getTreeId() {
+        return treeId;
+    }
+}
@@ -1,13 +1,33 @@
 package com.yauntyour.gitbackup.commands;
 
+import com.yauntyour.gitbackup.BackupDelta;
+import com.yauntyour.gitbackup.BackupHistory;
+import com.yauntyour.gitbackup.BackupMetrics;
+import com.yauntyour.gitbackup.BackupRecord;
 import com.yauntyour.gitbackup.GitBackupPlugin;
 import com.yauntyour.gitbackup.GitManager;
+import com.yauntyour.gitbackup.IoThrottle;
+import com.yauntyour.gitbackup.MaintenanceScheduler;
+import com.yauntyour.gitbackup.PartialRestore;
+import com.yauntyour.gitbackup.PushQueue;
+import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.World;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
 
 public class BackupCommand {
     private final GitBackupPlugin plugin;
@@ -59,13 +79,9 @@ public class BackupCommand {
             }
         }
 
-        sender.sendMessage(ChatColor.YELLOW + "开始创建备份...");
-        // 同步执行备份
-        boolean success = gitManager.commitChanges(message);
-        if (success) {
-            sender.sendMessage(ChatColor.GREEN + "备份创建成功!");
-        } else {
-            sender.sendMessage(ChatColor.RED + "备份创建失败，请查看控制台获取详细信息");
+        // 异步执行备份，进度由流水线发送给执行者
+        if (!plugin.getBackupPipeline().request(message, sender)) {
+            sender.sendMessage(ChatColor.YELLOW + "已有备份正在进行，本次请求将合并到下一次备份");
         }
 
         return true;
@@ -91,36 +107,52 @@ public class BackupCommand {
             page = 1;
         }
 
-        sender.sendMessage(ChatColor.YELLOW + "获取备份列表...");
-
-        List<String> history = gitManager.getBackupHistory();
-
-        if (history.isEmpty()) {
-            sender.sendMessage(ChatColor.YELLOW + "没有找到备份记录");
+        BackupHistory history = gitManager.getHistory();
+        if (history == null) {
+            sender.sendMessage(ChatColor.RED + "Git仓库未初始化!");
+            return true;
         }
 
+        // 读取历史可能访问仓库，放到异步线程；多读一条用来判断是否还有下一页
         int itemsPerPage = 10;
-        int totalPages = (int) Math.ceil((double) history.size() / itemsPerPage);
+        int currentPage = page;
+        int start = (page - 1) * itemsPerPage;
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            List<BackupRecord> records;
+            try {
+                records = history.getPage(start, itemsPerPage + 1);
+            } catch (IOException e) {
+                plugin.getLogger().severe("获取备份历史时出错: " + e.getMessage());
+                e.printStackTrace();
+                Bukkit.getScheduler().runTask(plugin, () ->
+                        sender.sendMessage(ChatColor.RED + "获取备份列表失败，请查看控制台获取详细信息"));
+                return;
+            }
+            Bukkit.getScheduler().runTask(plugin, () -> sendPage(sender, currentPage, start, itemsPerPage, records));
+        });
 
-        if (page > totalPages) {
-            page = totalPages;
-        }
+        return true;
+    }
 
-        int start = (page - 1) * itemsPerPage;
-        int end = Math.min(start + itemsPerPage, history.size());
+    private void sendPage(CommandSender sender, int page, int start, int itemsPerPage, List<BackupRecord> records) {
+        if (records.isEmpty()) {
+            sender.sendMessage(ChatColor.YELLOW + (page == 1 ? "没有找到备份记录" : "第 " + page + " 页没有备份记录"));
+            return;
+        }
 
-        sender.sendMessage(ChatColor.GOLD + "=== 备份列表 (第 " + page + " 页 / 共 " + totalPages + " 页) ===");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        sender.sendMessage(ChatColor.GOLD + "=== 备份列表 (第 " + page + " 页) ===");
 
-        for (int i = start; i < end; i++) {
-            sender.sendMessage(ChatColor.GREEN + "[" + (i + 1) + "] " + ChatColor.WHITE + history.get(i));
+        for (int i = 0; i < Math.min(itemsPerPage, records.size()); i++) {
+            BackupRecord record = records.get(i);
+            sender.sendMessage(ChatColor.GREEN + "[" + (start + i + 1) + "] " + ChatColor.WHITE + record.getShortId()
+                    + " - " + format.format(new Date(record.getTime())) + " - " + record.getMessage()
+                    + (record.getSummary().isEmpty() ? "" : ChatColor.GRAY + " (" + record.getSummary() + ")"));
         }
 
-        if (page < totalPages) {
+        if (records.size() > itemsPerPage) {
             sender.sendMessage(ChatColor.YELLOW + "使用 '/gitbackup list " + (page + 1) + "' 查看下一页");
         }
-
-
-        return true;
     }
 
     private boolean handleRestoreCommand(CommandSender sender, String[] args) {
@@ -130,46 +162,271 @@ public class BackupCommand {
         }
 
         if (args.length < 2) {
-            sender.sendMessage(ChatColor.RED + "用法: /gitbackup restore <commit-hash>");
+            sender.sendMessage(ChatColor.RED + "用法: /gitbackup restore <commit-hash> [<世界> region|area|player ...]");
             return true;
         }
 
-        // 确认操作
-        sender.sendMessage(ChatColor.RED + "警告: 这将覆盖当前世界数据!");
-        sender.sendMessage(ChatColor.RED + "输入 '/gitbackup restore confirm <commit-hash>' 确认恢复");
+        boolean confirmed = args.length >= 3 && args[1].equalsIgnoreCase("confirm");
+        int start = confirmed ? 2 : 1;
+        if (args.length > start + 1) {
+            return handlePartialRestore(sender, args, start, confirmed);
+        }
 
-        if (args.length >= 3) {
-            String commitHash = args[2];
-            sender.sendMessage(ChatColor.YELLOW + "Backup to the commit-hash: " + commitHash);
-            // 同步执行恢复
-            try {
-                boolean success = gitManager.restoreBackup(commitHash);
+        if (!confirmed) {
+            // 确认操作
+            sender.sendMessage(ChatColor.RED + "警告: 这将覆盖当前世界数据!");
+            sender.sendMessage(ChatColor.RED + "输入 '/gitbackup restore confirm " + args[args.length - 1] + "' 确认恢复");
+            return true;
+        }
+
+        String commitHash = args[2];
+        // 备份流程会保存世界并恢复自动保存设置，进行中时不能恢复；开始恢复后到重启前不再备份
+        if (!plugin.getBackupPipeline().suspendForRestore()) {
+            sender.sendMessage(ChatColor.RED + "备份正在进行中，请稍后再恢复");
+            return true;
+        }
+        sender.sendMessage(ChatColor.YELLOW + "正在恢复到备份: " + commitHash);
+
+        // 关闭自动保存，对比和复制时世界文件不再变化；恢复的世界在下次启动时换入，成功后保持关闭直到重启
+        Map<World, Boolean> autoSave = new HashMap<>();
+        for (String worldName : plugin.getConfigManager().getWorlds()) {
+            World world = Bukkit.getWorld(worldName);
+            if (world != null) {
+                autoSave.put(world, world.isAutoSave());
+                world.setAutoSave(false);
+            }
+        }
+
+        // 差异比较和写出在异步线程进行
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            boolean success = gitManager.restoreBackup(commitHash);
+            Bukkit.getScheduler().runTask(plugin, () -> {
                 if (success) {
-                    sender.sendMessage(ChatColor.GREEN + "备份恢复成功! 请重启服务器使更改生效");
+                    sender.sendMessage(ChatColor.GREEN + "备份恢复已暂存! 请重启服务器，世界加载前会换入恢复的世界");
+                } else if (gitManager.isRestorePending()) {
+                    // 已经写入了部分文件，保持自动保存关闭，避免覆盖
+                    sender.sendMessage(ChatColor.RED + "备份恢复未完成，请查看控制台获取详细信息，并在处理后重启服务器");
                 } else {
+                    autoSave.forEach(World::setAutoSave);
                     sender.sendMessage(ChatColor.RED + "备份恢复失败，请查看控制台获取详细信息");
                 }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            });
+        });
+        return true;
+    }
+
+    /**
+     * restore [confirm] <commit> <世界> region <rx> <rz> | area <x1> <z1> <x2> <z2> | player <名字|UUID>
+     */
+    private boolean handlePartialRestore(CommandSender sender, String[] args, int start, boolean confirmed) {
+        String commitHash = args[start];
+        String worldName = args[start + 1];
+        String mode = args.length > start + 2 ? args[start + 2].toLowerCase() : "";
+        String[] params = Arrays.copyOfRange(args, Math.min(start + 3, args.length), args.length);
+
+        PartialRestore.Action action;
+        String target;
+        try {
+            switch (mode) {
+                case "region": {
+                    if (params.length != 2) {
+                        sender.sendMessage(ChatColor.RED + "用法: /gitbackup restore <commit-hash> <世界> region <区域X> <区域Z>");
+                        return true;
+                    }
+                    int regionX = Integer.parseInt(params[0]);
+                    int regionZ = Integer.parseInt(params[1]);
+                    action = (restore, commit) -> restore.stageRegion(commit, worldName, regionX, regionZ);
+                    target = "区域 " + PartialRestore.regionName(regionX, regionZ);
+                    break;
+                }
+                case "area": {
+                    if (params.length != 4) {
+                        sender.sendMessage(ChatColor.RED + "用法: /gitbackup restore <commit-hash> <世界> area <x1> <z1> <x2> <z2>");
+                        return true;
+                    }
+                    // 方块坐标换算为区块坐标
+                    int x1 = Integer.parseInt(params[0]) >> 4;
+                    int z1 = Integer.parseInt(params[1]) >> 4;
+                    int x2 = Integer.parseInt(params[2]) >> 4;
+                    int z2 = Integer.parseInt(params[3]) >> 4;
+                    action = (restore, commit) -> restore.stageArea(commit, worldName,
+                            Math.min(x1, x2), Math.min(z1, z2), Math.max(x1, x2), Math.max(z1, z2));
+                    target = "区块 (" + Math.min(x1, x2) + ", " + Math.min(z1, z2) + ") 到 ("
+                            + Math.max(x1, x2) + ", " + Math.max(z1, z2) + ")";
+                    break;
+                }
+                case "player": {
+                    if (params.length != 1) {
+                        sender.sendMessage(ChatColor.RED + "用法: /gitbackup restore <commit-hash> <世界> player <玩家名|UUID>");
+                        return true;
+                    }
+                    OfflinePlayer player = resolvePlayer(params[0]);
+                    if (player == null) {
+                        sender.sendMessage(ChatColor.RED + "找不到玩家: " + params[0]);
+                        return true;
+                    }
+                    if (player.isOnline()) {
+                        // 在线玩家下线时会把内存中的数据写回，覆盖恢复的文件
+                        sender.sendMessage(ChatColor.RED + "玩家在线时不能恢复其数据，请先让玩家下线");
+                        return true;
+                    }
+                    World world = Bukkit.getWorld(worldName);
+                    File worldDir = world != null ? world.getWorldFolder() : new File(Bukkit.getWorldContainer(), worldName);
+                    UUID uuid = player.getUniqueId();
+                    action = (restore, commit) -> restore.restorePlayer(commit, worldName, uuid, worldDir.toPath());
+                    target = "玩家 " + params[0];
+                    break;
+                }
+                default:
+                    sender.sendMessage(ChatColor.RED + "用法: /gitbackup restore <commit-hash> <世界> region|area|player ...");
+                    return true;
             }
+        } catch (NumberFormatException e) {
+            sender.sendMessage(ChatColor.RED + "坐标必须是整数");
+            return true;
+        }
+
+        if (!confirmed) {
+            sender.sendMessage(ChatColor.RED + "警告: 这将用备份覆盖世界 '" + worldName + "' 中的" + target + "!");
+            sender.sendMessage(ChatColor.RED + "输入 '/gitbackup restore confirm "
+                    + String.join(" ", Arrays.copyOfRange(args, start, args.length)) + "' 确认恢复");
+            return true;
         }
+
+        // 世界已加载时服务器缓存着区域文件，只能暂存到下次启动；未加载时可以直接写入
+        boolean staged = !mode.equals("player") && Bukkit.getWorld(worldName) != null;
+        File worldContainer = Bukkit.getWorldContainer();
+        // 与完整恢复相同：备份进行中时不能恢复，开始恢复后到重启前不再备份
+        if (!plugin.getBackupPipeline().suspendForRestore()) {
+            sender.sendMessage(ChatColor.RED + "备份正在进行中，请稍后再恢复");
+            return true;
+        }
+        sender.sendMessage(ChatColor.YELLOW + "正在从备份 " + commitHash + " 恢复" + target);
+
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            int count = gitManager.restorePartial(commitHash, worldName, action);
+            if (count > 0 && !mode.equals("player") && !staged) {
+                PartialRestore.applyPending(GitManager.getPendingRoot(), worldContainer.toPath(), worldName, plugin.getLogger());
+            }
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                if (count < 0) {
+                    sender.sendMessage(ChatColor.RED + "恢复失败，请查看控制台获取详细信息");
+                } else if (count == 0) {
+                    sender.sendMessage(ChatColor.YELLOW + "备份中没有找到" + target + "的数据");
+                } else if (staged) {
+                    sender.sendMessage(ChatColor.GREEN + "已暂存 " + count + " 项，将在下次服务器启动、世界加载前写入");
+                } else {
+                    sender.sendMessage(ChatColor.GREEN + "已恢复 " + count + " 项");
+                }
+            });
+        });
         return true;
     }
 
+    @SuppressWarnings("deprecation")
+    private static OfflinePlayer resolvePlayer(String nameOrId) {
+        try {
+            return Bukkit.getOfflinePlayer(UUID.fromString(nameOrId));
+        } catch (IllegalArgumentException e) {
+            OfflinePlayer player = Bukkit.getOfflinePlayer(nameOrId);
+            return player.isOnline() || player.hasPlayedBefore() ? player : null;
+        }
+    }
+
     private boolean handleStatusCommand(CommandSender sender) {
         if (!sender.hasPermission("gitbackup.use")) {
             sender.sendMessage(ChatColor.RED + "你没有权限执行此命令!");
             return true;
         }
 
-        // 这里可以添加更多状态信息
         sender.sendMessage(ChatColor.GOLD + "=== Git备份状态 ===");
-        sender.sendMessage(ChatColor.GREEN + "插件运行正常");
+        sender.sendMessage(ChatColor.GREEN + "插件运行正常"
+                + (plugin.getBackupPipeline().isRunning() ? "，备份正在进行" : ""));
+
+        BackupMetrics metrics = gitManager.getMetrics();
+        if (metrics.getBackups() > 0) {
+            sender.sendMessage(ChatColor.WHITE + "上次备份: " + formatTime(metrics.getLastRunTime())
+                    + "，耗时 " + metrics.getLastRunMillis() + " ms"
+                    + "，本次启动后共 " + metrics.getBackups() + " 次，失败 " + metrics.getFailures() + " 次");
+            StringBuilder phases = new StringBuilder();
+            for (BackupMetrics.Phase phase : new BackupMetrics.Phase[]{BackupMetrics.Phase.SAVE,
+                    BackupMetrics.Phase.SNAPSHOT, BackupMetrics.Phase.SCAN, BackupMetrics.Phase.COMMIT,
+                    BackupMetrics.Phase.RETENTION}) {
+                if (phases.length() > 0) {
+                    phases.append(", ");
+                }
+                phases.append(phase.getDisplayName()).append(' ').append(metrics.getLastMillis(phase)).append(" ms");
+            }
+            sender.sendMessage(ChatColor.WHITE + "  各阶段: " + phases);
+            sender.sendMessage(ChatColor.WHITE + "  扫描 " + metrics.getLastFilesScanned() + " 个文件，重新写入 "
+                    + metrics.getLastFilesWritten() + " 个 (" + BackupDelta.formatBytes(metrics.getLastBytesWritten()) + ")");
+            sender.sendMessage(ChatColor.WHITE + "  内存: "
+                    + (metrics.getLastAllocatedBytes() >= 0
+                    ? "备份线程分配 " + BackupDelta.formatBytes(metrics.getLastAllocatedBytes()) + "，" : "")
+                    + "堆内存峰值 " + BackupDelta.formatBytes(metrics.getLastHeapPeakBytes())
+                    + "，GC " + metrics.getLastGcCount() + " 次 (" + metrics.getLastGcMillis() + " ms)");
+        } else {
+            sender.sendMessage(ChatColor.WHITE + "本次启动后尚未创建备份");
+        }
+        if (plugin.getConfigManager().isBackupPolicyEnabled()) {
+            StringBuilder dirty = new StringBuilder();
+            for (String worldName : plugin.getConfigManager().getWorlds()) {
+                if (dirty.length() > 0) {
+                    dirty.append(", ");
+                }
+                dirty.append(worldName).append(' ').append(plugin.getDirtyRegionTracker().getDirtyChunks(worldName));
+            }
+            sender.sendMessage(ChatColor.WHITE + "自上次备份以来估计修改的区块: " + dirty);
+        }
+
+        MaintenanceScheduler maintenance = plugin.getMaintenanceScheduler();
+        Properties statistics = maintenance.getStatistics();
+        if (statistics != null) {
+            sender.sendMessage(ChatColor.WHITE + "pack 文件: " + MaintenanceScheduler.getLong(statistics, "numberOfPackFiles")
+                    + ", 松散对象: " + MaintenanceScheduler.getLong(statistics, "numberOfLooseObjects"));
+        } else {
+            sender.sendMessage(ChatColor.WHITE + "仓库统计尚未读取");
+        }
+        IoThrottle throttle = gitManager.getThrottle();
+        if (throttle.isPaused()) {
+            sender.sendMessage(ChatColor.YELLOW + "服务器卡顿（平均 tick " + String.format("%.1f", throttle.getLastTickMillis())
+                    + " ms），备份读写已暂停");
+        } else if (throttle.isLimiting()) {
+            sender.sendMessage(ChatColor.WHITE + "备份读写限速: " + BackupDelta.formatBytes(throttle.getCurrentRate())
+                    + "/s，线程 " + throttle.getWorkerLimit() + "/" + throttle.getMaxWorkers()
+                    + (throttle.getLastTickMillis() > 0
+                    ? "，平均 tick " + String.format("%.1f", throttle.getLastTickMillis()) + " ms" : ""));
+        }
+        sender.sendMessage(ChatColor.WHITE + "上次仓库维护: " + formatTime(gitManager.getLastMaintenanceTime())
+                + (metrics.getLastMaintenanceMillis() > 0 ? "，耗时 " + metrics.getLastMaintenanceMillis() + " ms" : ""));
+        if (maintenance.isRunning()) {
+            sender.sendMessage(ChatColor.YELLOW + "仓库维护正在进行");
+        } else {
+            // 统计需要遍历对象目录，在异步线程刷新，下次查看状态时显示
+            maintenance.refreshStatisticsAsync();
+        }
+
+        PushQueue pushQueue = gitManager.getPushQueue();
+        if (pushQueue != null && !plugin.getConfigManager().getRemoteUrl().isEmpty()) {
+            long lag = pushQueue.getLag();
+            sender.sendMessage(ChatColor.WHITE + "未推送的备份: " + pushQueue.getUnpushedBackups()
+                    + (lag > 0 ? "，最早的已等待 " + (lag / 60000) + " 分钟" : ""));
+            sender.sendMessage(ChatColor.WHITE + "上次推送: " + formatTime(pushQueue.getLastPushTime())
+                    + "，耗时 " + metrics.getLastPushMillis() + " ms，已上传 " + BackupDelta.formatBytes(metrics.getPushBytes()));
+            if (pushQueue.getLastError() != null) {
+                sender.sendMessage(ChatColor.RED + "上次推送失败: " + pushQueue.getLastError()
+                        + "，下次重试: " + formatTime(pushQueue.getNextAttempt()));
+            }
+        }
         sender.sendMessage(ChatColor.YELLOW + "使用 '/gitbackup list' 查看备份历史");
 
         return true;
     }
 
+    private static String formatTime(long millis) {
+        return millis > 0 ? new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(millis)) : "从未";
+    }
+
     private boolean handleReloadCommand(CommandSender sender) {
         if (!sender.hasPermission("gitbackup.reload")) {
             sender.sendMessage(ChatColor.RED + "你没有权限执行此命令!");
@@ -179,6 +436,11 @@ public class BackupCommand {
         plugin.getConfigManager().loadConfig();
         plugin.getBackupScheduler().stopScheduledBackups();
         plugin.getBackupScheduler().startScheduledBackups();
+        plugin.getMaintenanceScheduler().stopScheduledMaintenance();
+        plugin.getMaintenanceScheduler().startScheduledMaintenance();
+        plugin.configureMetrics();
+        plugin.configureThrottle();
+        gitManager.configureMemory();
 
         sender.sendMessage(ChatColor.GREEN + "配置已重新加载!");
         return true;
@@ -207,6 +469,7 @@ public class BackupCommand {
         sender.sendMessage(ChatColor.YELLOW + "/gitbackup now [消息] - 立即创建备份");
         sender.sendMessage(ChatColor.YELLOW + "/gitbackup list [页码] - 列出备份历史");
         sender.sendMessage(ChatColor.YELLOW + "/gitbackup restore <commit-id> - 恢复到指定备份");
+        sender.sendMessage(ChatColor.YELLOW + "/gitbackup restore <commit-id> <世界> region|area|player ... - 部分恢复区域、区块范围或玩家");
         sender.sendMessage(ChatColor.YELLOW + "/gitbackup status - 显示当前备份状态");
         sender.sendMessage(ChatColor.YELLOW + "/gitbackup reload - 重新加载配置");
         sender.sendMessage(ChatColor.YELLOW + "/gitbackup init - 初始化Git仓库");
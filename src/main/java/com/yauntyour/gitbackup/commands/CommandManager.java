@@ -1,6 +1,9 @@
 package com.yauntyour.gitbackup.commands;
 
+import com.yauntyour.gitbackup.BackupHistory;
 import com.yauntyour.gitbackup.GitBackupPlugin;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -10,6 +13,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 public class CommandManager implements CommandExecutor, TabCompleter {
+    private static final int MAX_ID_COMPLETIONS = 20;
+    private static final String[] PARTIAL_MODES = {"region", "area", "player"};
+
     private final GitBackupPlugin plugin;
     private final BackupCommand backupCommand;
 
@@ -53,6 +59,43 @@ public class CommandManager implements CommandExecutor, TabCompleter {
             if ("init".startsWith(partial) && sender.hasPermission("gitbackup.init")) {
                 completions.add("init");
             }
+        } else if (args[0].equalsIgnoreCase("restore") && sender.hasPermission("gitbackup.restore")) {
+            // 提交 ID 只从历史缓存中补全，不在主线程读取仓库
+            BackupHistory history = plugin.getGitManager().getHistory();
+            if (args.length == 2) {
+                if ("confirm".startsWith(args[1].toLowerCase())) {
+                    completions.add("confirm");
+                }
+                if (history != null) {
+                    completions.addAll(history.completeIds(args[1], MAX_ID_COMPLETIONS));
+                }
+            } else if (args.length == 3 && args[1].equalsIgnoreCase("confirm") && history != null) {
+                completions.addAll(history.completeIds(args[2], MAX_ID_COMPLETIONS));
+            } else {
+                // 部分恢复: [confirm] <commit> <世界> region|area|player
+                int start = args[1].equalsIgnoreCase("confirm") ? 2 : 1;
+                int position = args.length - 1 - start;
+                String partial = args[args.length - 1];
+                if (position == 1) {
+                    for (String world : plugin.getConfigManager().getWorlds()) {
+                        if (world.startsWith(partial)) {
+                            completions.add(world);
+                        }
+                    }
+                } else if (position == 2) {
+                    for (String mode : PARTIAL_MODES) {
+                        if (mode.startsWith(partial.toLowerCase())) {
+                            completions.add(mode);
+                        }
+                    }
+                } else if (position == 3 && args[args.length - 2].equalsIgnoreCase("player")) {
+                    for (OfflinePlayer player : Bukkit.getOfflinePlayers()) {
+                        if (player.getName() != null && !player.isOnline() && player.getName().startsWith(partial)) {
+                            completions.add(player.getName());
+                        }
+                    }
+                }
+            }
         }
 
         return completions;
@@ -0,0 +1,40 @@
+package com.yauntyour.gitbackup.listeners;
+
+import com.yauntyour.gitbackup.DirtyRegionTracker;
+import org.bukkit.Chunk;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldLoadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+/**
+ * 把区块和世界的加载状态变化交给 {@link DirtyRegionTracker}。
+ * 方块、实体的修改都发生在已加载的区块中，这些区块要么在卸载时被记录，要么在备份时整体记录，
+ * 因此不需要逐个监听方块事件。
+ */
+public class DirtyRegionListener implements Listener {
+    private final DirtyRegionTracker tracker;
+
+    public DirtyRegionListener(DirtyRegionTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        Chunk chunk = event.getChunk();
+        tracker.markChunk(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldLoad(WorldLoadEvent event) {
+        // 世界未加载期间可能被外部修改
+        tracker.requireFullScan(event.getWorld().getName());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        tracker.requireFullScan(event.getWorld().getName());
+    }
+}
@@ -0,0 +1,35 @@
+package com.yauntyour.gitbackup.listeners;
+
+import com.yauntyour.gitbackup.BackupScheduler;
+import org.bukkit.Bukkit;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * 把玩家的加入和退出交给 {@link BackupScheduler}，用于跳过无人在线期间的备份和在最后一名玩家退出时备份。
+ */
+public class PlayerActivityListener implements Listener {
+    private final BackupScheduler scheduler;
+
+    public PlayerActivityListener(BackupScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        scheduler.playerActive();
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        // 退出事件触发时玩家仍在在线列表中
+        if (Bukkit.getOnlinePlayers().size() <= 1) {
+            scheduler.lastPlayerQuit();
+        } else {
+            scheduler.playerActive();
+        }
+    }
+}